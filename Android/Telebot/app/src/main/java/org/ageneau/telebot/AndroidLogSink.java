@@ -0,0 +1,42 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+/**
+ * Forward messages from platform-neutral code to the Android log
+ */
+class AndroidLogSink implements Log.Sink {
+
+    @Override
+    public void log(int level, String tag, String message) {
+        switch(level) {
+            case Log.ERROR:
+                android.util.Log.e(tag, message);
+                break;
+
+            case Log.WARN:
+                android.util.Log.w(tag, message);
+                break;
+
+            default:
+                android.util.Log.d(tag, message);
+                break;
+        }
+    }
+}
@@ -0,0 +1,46 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import java.util.Locale;
+
+/**
+ * Forward command spans to the Android log, one line per span
+ * Enable with: adb shell setprop log.tag.TelebotTrace VERBOSE
+ * then restart the app and read with: adb logcat -s TelebotTrace
+ */
+class AndroidTraceSink implements Trace.Sink {
+
+    static final String TAG = "TelebotTrace";
+
+    /**
+     * Install the sink if enabled for the log tag, return true on success
+     */
+    static boolean installIfEnabled() {
+        if(!android.util.Log.isLoggable(TAG, android.util.Log.VERBOSE)) return false;
+        Trace.setSink(new AndroidTraceSink());
+        return true;
+    }
+
+    @Override
+    public void span(long trace, int span, long start, long end) {
+        android.util.Log.v(TAG, String.format(Locale.US, "trace=%d %s %.3f ms end=%d",
+                trace, Trace.getName(span), (end - start) / 1e6, end));
+    }
+}
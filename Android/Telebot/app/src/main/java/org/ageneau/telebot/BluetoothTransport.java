@@ -0,0 +1,171 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothSocket;
+import android.util.Log;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Set;
+import java.util.UUID;
+
+/**
+ * Bluetooth serial (RFCOMM) link to a paired device
+ */
+public class BluetoothTransport implements SerialTransport {
+
+    private static final String TAG = "BluetoothTransport";
+    private static final UUID SPP_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");
+
+    private final BluetoothAdapter mBtAdapter;
+    private final String mDeviceName;
+
+    private BluetoothSocket mBtSocket;
+    private volatile String mDeviceAddress;
+    private boolean mAddressConfirmed;  // A connection to the address succeeded
+
+    /**
+     * Create transport for the paired device with specified name
+     */
+    public BluetoothTransport(BluetoothAdapter adapter, String deviceName) {
+        mBtAdapter = adapter;
+        mDeviceName = deviceName;
+    }
+
+    /**
+     * Create transport for the paired device with specified name, trying the remembered address first
+     */
+    public BluetoothTransport(BluetoothAdapter adapter, String deviceName, String rememberedAddress) {
+        this(adapter, deviceName);
+        if(rememberedAddress != null && BluetoothAdapter.checkBluetoothAddress(rememberedAddress))
+            mDeviceAddress = rememberedAddress;
+    }
+
+    /**
+     * Connect serial, to the known address if any, otherwise find the device from its name
+     */
+    @Override
+    public void connect() throws IOException {
+
+        // Check if Bluetooth is enabled
+        if(!mBtAdapter.isEnabled())
+            throw new IOException("Bluetooth adapter is not enabled");
+
+        // Reconnect directly, the device has already been found or was remembered
+        if(mDeviceAddress != null) {
+            try {
+                connect(mBtAdapter.getRemoteDevice(mDeviceAddress));
+                mAddressConfirmed = true;
+                return;
+            }
+            catch (IOException e) {
+                if(mAddressConfirmed) throw e;
+                Log.d(TAG, "Remembered Bluetooth device unavailable, looking for it by name");
+                mDeviceAddress = null;
+            }
+        }
+
+        // Look for Bluetooth device
+        Set<BluetoothDevice> pairedDevices = mBtAdapter.getBondedDevices();
+        for(BluetoothDevice device : pairedDevices) {
+            if(device.getName().equals(mDeviceName)) {
+                Log.d(TAG, "Bluetooth device found");
+                try {
+                    connect(device);
+
+                    // Retrieve address
+                    mDeviceAddress = device.getAddress();
+                    mAddressConfirmed = true;
+                    return;
+                }
+                catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+
+        throw new IOException("Unable to connect Bluetooth device");
+    }
+
+    /**
+     * Connect serial port on device
+     */
+    private void connect(BluetoothDevice device) throws IOException {
+        try {
+            mBtSocket = device.createInsecureRfcommSocketToServiceRecord(SPP_UUID);
+            mBtSocket.connect();
+            Log.d(TAG, "Bluetooth device connected");
+        }
+        catch (IOException e) {
+            close();
+            throw e;
+        }
+    }
+
+    @Override
+    public void close() {
+        try {
+            if(mBtSocket != null)
+                mBtSocket.close();
+        } catch (IOException e) {
+
+        }
+
+        mBtSocket = null;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if(mBtSocket == null) throw new IOException("Not connected");
+        return mBtSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if(mBtSocket == null) throw new IOException("Not connected");
+        return mBtSocket.getOutputStream();
+    }
+
+    /**
+     * Get the device address without connecting, the known one or the one of the paired device
+     * with the name, or null if there is none
+     */
+    public String findAddress() {
+        String address = mDeviceAddress;
+        if(address != null) return address;
+
+        for(BluetoothDevice device : mBtAdapter.getBondedDevices()) {
+            if(mDeviceName.equals(device.getName()))
+                return device.getAddress();
+        }
+        return null;
+    }
+
+    /**
+     * Get device MAC address
+     */
+    @Override
+    public String getAddress() {
+        return mDeviceAddress;
+    }
+}
@@ -23,6 +23,7 @@ import android.bluetooth.BluetoothAdapter;
 import android.content.ActivityNotFoundException;
 import android.content.Context;
 import android.content.Intent;
+import android.content.SharedPreferences;
 import android.media.AudioManager;
 import android.net.Uri;
 import android.os.AsyncTask;
@@ -31,14 +32,14 @@ import android.util.Log;
 import android.view.Window;
 import android.widget.Toast;
 
-import java.io.IOException;
+import java.io.File;
 import java.util.Locale;
 import java.util.Random;
 
 /**
  * Telebot activity
  */
-public class TelebotActivity extends Activity  {
+public class TelebotActivity extends Activity implements SerialHandler.Listener {
 
     private static final String TAG = "TelebotActivity";
     
@@ -46,18 +47,28 @@ public class TelebotActivity extends Activity  {
     private static final String URL = "https://telebot.ageneau.net";
     private static final String DEVICE_NAME = "Telebot";
     private static final int HTTP_SERVER_PORT = 11698;
+    private static final int CONTROL_RATE = 50;             // Hz
+    private static final int CONTROL_ACCELERATION = 400;    // percent per second
+    private static final String JOURNAL_DIRECTORY = "journal";
+    private static final String PREF_DEVICE_ADDRESS = "deviceAddress";
 
     private static final int BLUETOOTH_REQUEST_CODE = 1;
     private static final int BROWSER_REQUEST_CODE = 2;
 
     private BluetoothAdapter mBtAdapter;
     private SerialHttpServer mServer;
+    private boolean mLaunched;
     private String mSessionId;
+    private volatile int mBatteryPercent = -1;
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
         super.onCreate(savedInstanceState);
 
+        // Route logs of the core module to the Android log
+        org.ageneau.telebot.Log.setSink(new AndroidLogSink());
+        if(AndroidTraceSink.installIfEnabled()) Log.d(TAG, "Tracing commands to the log");
+
         requestWindowFeature(Window.FEATURE_NO_TITLE);
         setContentView(R.layout.telebot_activity);
 
@@ -116,9 +127,13 @@ public class TelebotActivity extends Activity  {
     }
 
     /**
-     * Connect Bluetooth device, launch background HTTP server, and launch browser
+     * Launch background HTTP server, connect Bluetooth device, and launch browser
+     * The device address is resolved first, then the server starts and the device connects while the browser opens
      */
     private void launch() {
+        // onStart is called again when coming back from the Bluetooth prompt or the browser
+        if(mLaunched) return;
+
         // Get the Bluetooth adapter
         mBtAdapter = BluetoothAdapter.getDefaultAdapter();
         if(mBtAdapter == null) {
@@ -136,26 +151,64 @@ public class TelebotActivity extends Activity  {
 
         Log.d(TAG, "Bluetooth is enabled");
 
+        mLaunched = true;
         final TelebotActivity activity = this;
+        final long launchTime = System.nanoTime();
+        final SharedPreferences preferences = getPreferences(Context.MODE_PRIVATE);
+        final BluetoothTransport transport = new BluetoothTransport(mBtAdapter, DEVICE_NAME,
+                preferences.getString(PREF_DEVICE_ADDRESS, null));
+
         AsyncTask.execute(new Runnable() {
             @Override
             public void run() {
-                // Connect the Bluetooth device
-                SerialHandler handler;
-                try {
-                    handler = new SerialHandler(activity, mBtAdapter, DEVICE_NAME);
-                } catch (IOException e) {
-                    e.printStackTrace();
-                    finishWithError("Unable to connect to the Bluetooth device. Please check it is paired.");
+                // Retrieve session ID from the device address, known before connecting,
+                // so nothing is started if the device is not paired
+                String address = transport.findAddress();
+                if(address == null) {
+                    finishWithError("Unable to find the Bluetooth device. Please check it is paired.");
                     return;
                 }
+                mSessionId = String.format(Locale.US, "%06d", Math.abs(address.hashCode()) % 1000000);
+                long addressTime = elapsedSince(launchTime);
 
-                // Retrieve session ID
-                mSessionId = String.format(Locale.US, "%06d", Math.abs(handler.getAddress().hashCode()) % 1000000);
+                // The handler connects in background and retries until the device is up,
+                // controls received meanwhile are answered as connecting
+                final SerialHandler handler = SerialHandler.connectInBackground(transport, activity);
 
                 // Start the control server
-                mServer = new SerialHttpServer(HTTP_SERVER_PORT, handler);
+                mServer = new SerialHttpServer(HTTP_SERVER_PORT);
+                mServer.setEngine(HttpServer.Engine.NIO);   // keep-alive for browser fetches
+                Robot robot = mServer.addRobot(SerialHttpServer.DEFAULT_ROBOT, handler);
+                final Metrics metrics = mServer.getMetrics();
+                metrics.recordPhase("address", addressTime);
+
+                // Journal controls and telemetry for replay
+                Journal journal = new Journal(new File(getFilesDir(), JOURNAL_DIRECTORY));
+                journal.start();
+                mServer.setJournal(journal);
+
+                // Ramp the motors toward the requested controls at a steady rate
+                ControlLoop loop = new ControlLoop(handler, CONTROL_RATE, CONTROL_ACCELERATION);
+                robot.setControlLoop(loop);
+                loop.start();
                 mServer.start();
+                metrics.recordPhase("server", elapsedSince(launchTime));
+
+                // Remember the device once connected, without holding the launch
+                AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            handler.awaitConnected();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+
+                        // Remember the device for the next launch
+                        preferences.edit().putString(PREF_DEVICE_ADDRESS, transport.getAddress()).apply();
+                        metrics.recordPhase("connect", elapsedSince(launchTime));
+                    }
+                });
 
                 // Force sound through speaker
                 AudioManager audioManager = (AudioManager) getSystemService(Context.AUDIO_SERVICE);
@@ -177,10 +230,29 @@ public class TelebotActivity extends Activity  {
                     finishWithError("You need to install Google Chrome or Mozilla Firefox.");
                     return;
                 }
+                metrics.recordPhase("browser", elapsedSince(launchTime));
             }
         });
     }
 
+    /**
+     * Get the time elapsed since a System.nanoTime() value, in ms
+     */
+    private static long elapsedSince(long start) {
+        return (System.nanoTime() - start) / 1000000L;
+    }
+
+    /**
+     * Display battery status received from the device, when it changes
+     * The level is polled periodically and served on /status
+     */
+    @Override
+    public void onBattery(int percent) {
+        if(percent == mBatteryPercent) return;
+        mBatteryPercent = percent;
+        displayMessage("Battery: " + percent + " %");
+    }
+
     /**
      * Display a message
      */
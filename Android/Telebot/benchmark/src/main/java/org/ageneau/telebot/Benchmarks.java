@@ -0,0 +1,72 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import java.nio.charset.Charset;
+
+/**
+ * Helpers shared by benchmarks
+ */
+final class Benchmarks {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private Benchmarks() {}
+
+    /**
+     * Silence logging, which would otherwise dominate measurements
+     */
+    static void muteLog() {
+        Log.setSink(new Log.Sink() {
+            @Override
+            public void log(int level, String tag, String message) {
+
+            }
+        });
+    }
+
+    /**
+     * Build a request like the ones sent by the web client
+     */
+    static byte[] request(String type) {
+        String head = "Host: 127.0.0.1:11698\r\n"
+                + "User-Agent: Mozilla/5.0 (Linux; Android 7.0) Chrome/57.0\r\n"
+                + "Origin: https://telebot.ageneau.net\r\n";
+
+        switch(type) {
+            case "POST": {
+                String body = "{\"left\":50,\"right\":-50}";
+                return ("POST /control HTTP/1.1\r\n" + head
+                        + "Content-Type: application/json\r\n"
+                        + "Content-Length: " + body.length() + "\r\n\r\n" + body).getBytes(ASCII);
+            }
+
+            case "GET":
+                return ("GET /control HTTP/1.1\r\n" + head + "\r\n").getBytes(ASCII);
+
+            case "OPTIONS":
+                return ("OPTIONS /control HTTP/1.1\r\n" + head
+                        + "Access-Control-Request-Method: POST\r\n"
+                        + "Access-Control-Request-Headers: content-type\r\n\r\n").getBytes(ASCII);
+
+            default:
+                throw new IllegalArgumentException("Unknown request type " + type);
+        }
+    }
+}
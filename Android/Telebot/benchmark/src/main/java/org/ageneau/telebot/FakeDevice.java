@@ -0,0 +1,85 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Device end of a loopback transport behaving like the original firmware
+ * Controls are discarded, battery requests are answered and binary framing is refused
+ */
+class FakeDevice implements Runnable {
+
+    private final LoopbackTransport mTransport = new LoopbackTransport();
+    private final byte[] mBuffer = new byte[256];
+    private OutputStream mOut;
+
+    FakeDevice() {
+        Thread t = new Thread(this, "FakeDevice");
+        t.setDaemon(true);
+        t.start();
+    }
+
+    LoopbackTransport getTransport() {
+        return mTransport;
+    }
+
+    @Override
+    public void run() {
+        FrameDecoder decoder = new FrameDecoder(mBuffer.length, new FrameDecoder.Listener() {
+            @Override
+            public void onCommand(char command, int value) {
+                try {
+                    if(command == 'P') mOut.write("E\n".getBytes());
+                    else if(command == 'B') mOut.write("B 100\n".getBytes());
+                } catch(IOException e) {
+                    // Link closed
+                }
+            }
+        });
+
+        try {
+            while(true) {
+                InputStream in = mTransport.getDeviceInputStream();
+                mOut = mTransport.getDeviceOutputStream();
+                while(decoder.readFrom(in) >= 0);
+                Thread.sleep(10);   // Wait for reconnection
+            }
+        } catch(IOException e) {
+            // Stopped
+        } catch(InterruptedException e) {
+            // Stopped
+        }
+    }
+
+    /**
+     * Create a handler connected to a new fake device
+     */
+    static SerialHandler connect() throws IOException {
+        FakeDevice device = new FakeDevice();
+        return new SerialHandler(device.getTransport(), new SerialHandler.Listener() {
+            @Override
+            public void onBattery(int percent) {
+
+            }
+        });
+    }
+}
@@ -0,0 +1,553 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Simulator of the Arduino firmware on a local TCP socket, to be reached with TcpTransport
+ * Usage: FirmwareSimulator [-p port] [-b baud] [-l latency ms] [-x rx buffer] [-s step ms]
+ *                          [-d mean seconds between disconnects] [-B battery percent] [-n count]
+ * With -n, the simulator is driven through a SerialHandler and command latency is reported.
+ *
+ * Text and binary commands are parsed like telebot.ino does. The link is emulated in both
+ * directions: bytes are delayed by the latency, then paced at the baud rate through the
+ * Bluetooth module, which holds a few hundred bytes before pushing back on the socket.
+ * The firmware loop runs every step and reads the receive buffer, bytes arriving while it
+ * is full are lost like with SoftwareSerial.
+ */
+public class FirmwareSimulator {
+
+    private static final String TAG = "FirmwareSimulator";
+
+    private static final int PROTOCOL_VERSION = 2;     // Commits acknowledged from version 2
+    private static final byte FRAME_START = (byte) 0xA5;
+    private static final int MODULE_BUFFER = 256;       // bytes held by the Bluetooth module
+    private static final int MAX_LINE = 100;
+
+    /**
+     * Receiver of committed controls, called on the simulator thread
+     */
+    public interface Listener {
+        void onControl(int left, int right);
+    }
+
+    private final int mPort;
+    private int mBaudRate = 9600;
+    private int mLatency = 0;               // ms, each direction
+    private int mRxBufferSize = 64;         // SoftwareSerial receive buffer
+    private int mStep = 10;                 // ms, firmware loop period
+    private long mDisconnectInterval = 0;   // mean ms between random disconnects, 0 to disable
+    private volatile int mBattery = 100;
+    private volatile Listener mListener;
+
+    private final Random mRandom = new Random();
+    private ServerSocket mServerSocket;
+    private Thread mAcceptThread;
+    private volatile Socket mSocket;
+
+    // Firmware state, kept across connections like the board keeps running
+    private int mTempLeft, mTempRight;
+    private volatile int mLeft, mRight;
+
+    private final AtomicLong mCommands = new AtomicLong();
+    private final AtomicLong mCommits = new AtomicLong();
+    private final AtomicLong mOverflows = new AtomicLong();
+    private final AtomicLong mCrcErrors = new AtomicLong();
+    private final AtomicLong mConnections = new AtomicLong();
+    private final AtomicLong mDisconnects = new AtomicLong();
+
+    public FirmwareSimulator(int port) {
+        mPort = port;
+    }
+
+    public void setBaudRate(int baudRate) {
+        mBaudRate = baudRate;
+    }
+
+    /**
+     * Set the latency added in each direction, in ms
+     */
+    public void setLatency(int latency) {
+        mLatency = latency;
+    }
+
+    public void setRxBufferSize(int size) {
+        mRxBufferSize = size;
+    }
+
+    /**
+     * Set the firmware loop period, in ms
+     */
+    public void setStep(int step) {
+        mStep = step;
+    }
+
+    /**
+     * Drop the link at random, with the specified mean interval in ms, 0 to disable
+     */
+    public void setDisconnectInterval(long interval) {
+        mDisconnectInterval = interval;
+    }
+
+    public void setBattery(int percent) {
+        mBattery = percent;
+    }
+
+    public void setListener(Listener listener) {
+        mListener = listener;
+    }
+
+    public int getLeft() {
+        return mLeft;
+    }
+
+    public int getRight() {
+        return mRight;
+    }
+
+    /**
+     * Start listening on the loopback interface
+     */
+    public void start() throws IOException {
+        mServerSocket = new ServerSocket(mPort, 1, InetAddress.getLoopbackAddress());
+        mAcceptThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while(true) {
+                        Socket socket = mServerSocket.accept();
+                        socket.setTcpNoDelay(true);
+                        mConnections.incrementAndGet();
+                        mSocket = socket;
+                        serve(socket);  // One link at a time, like a serial port
+                        mSocket = null;
+                    }
+                } catch(IOException e) {
+                    // Stopped
+                }
+            }
+        }, TAG);
+        mAcceptThread.setDaemon(true);
+        mAcceptThread.start();
+        Log.d(TAG, "Listening on port " + mServerSocket.getLocalPort());
+    }
+
+    public void stop() {
+        try {
+            if(mServerSocket != null) mServerSocket.close();
+            Socket socket = mSocket;
+            if(socket != null) socket.close();
+        } catch(IOException e) {
+            // Ignore
+        }
+    }
+
+    /**
+     * Get counters as text
+     */
+    public String getStats() {
+        return String.format(Locale.US,
+                "connections=%d disconnects=%d commands=%d commits=%d overflows=%d crcErrors=%d left=%d right=%d",
+                mConnections.get(), mDisconnects.get(), mCommands.get(), mCommits.get(),
+                mOverflows.get(), mCrcErrors.get(), mLeft, mRight);
+    }
+
+    // Run the link until it is closed
+    private void serve(final Socket socket) {
+        final Link in = new Link();
+        final Link out = new Link();
+
+        // Phone to module, blocks the socket when the module buffer is full
+        Thread reader = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    InputStream stream = socket.getInputStream();
+                    byte[] buffer = new byte[64];
+                    int n;
+                    while((n = stream.read(buffer)) >= 0)
+                        for(int i = 0; i < n; ++i)
+                            in.put(buffer[i]);
+                } catch(IOException e) {
+                    // Closed
+                } catch(InterruptedException e) {
+                    // Stopped
+                }
+                in.close();
+            }
+        }, TAG + "-Reader");
+
+        // Module to phone
+        Thread writer = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    OutputStream stream = socket.getOutputStream();
+                    int b;
+                    while((b = out.take()) >= 0)
+                        stream.write(b);
+                } catch(IOException e) {
+                    // Closed
+                } catch(InterruptedException e) {
+                    // Stopped
+                }
+            }
+        }, TAG + "-Writer");
+
+        reader.setDaemon(true);
+        writer.setDaemon(true);
+        reader.start();
+        writer.start();
+
+        long disconnectAt = Long.MAX_VALUE;
+        if(mDisconnectInterval > 0)
+            disconnectAt = System.currentTimeMillis() + (long) (-Math.log(1. - mRandom.nextDouble()) * mDisconnectInterval);
+
+        Firmware firmware = new Firmware(out);
+        try {
+            while(!in.isClosed()) {
+                Thread.sleep(mStep);
+
+                // Receive buffer filled since the last iteration, the rest is lost
+                int count = 0;
+                int b;
+                while((b = in.poll()) >= 0) {
+                    if(count++ < mRxBufferSize) firmware.receive((byte) b);
+                    else mOverflows.incrementAndGet();
+                }
+
+                if(System.currentTimeMillis() >= disconnectAt) {
+                    Log.d(TAG, "Dropping link");
+                    mDisconnects.incrementAndGet();
+                    break;
+                }
+            }
+        } catch(InterruptedException e) {
+            // Stopped
+        }
+
+        try {
+            socket.close();
+        } catch(IOException e) {
+            // Ignore
+        }
+        out.close();
+        reader.interrupt();
+        writer.interrupt();
+    }
+
+    /**
+     * One direction of the link: bytes are due after the latency, spaced by the byte time
+     */
+    private class Link {
+        private final byte[] mBytes = new byte[MODULE_BUFFER];
+        private final long[] mDue = new long[MODULE_BUFFER];
+        private final long mByteTime = TimeUnit.SECONDS.toNanos(10) / mBaudRate;   // start and stop bits
+        private int mHead, mCount;
+        private long mLastDue;
+        private boolean mClosed;
+
+        synchronized void put(byte b) throws InterruptedException {
+            while(mCount == mBytes.length && !mClosed) wait();
+            if(mClosed) return;
+
+            long due = Math.max(System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(mLatency), mLastDue + mByteTime);
+            int tail = (mHead + mCount) % mBytes.length;
+            mBytes[tail] = b;
+            mDue[tail] = due;
+            mLastDue = due;
+            ++mCount;
+            notifyAll();
+        }
+
+        // Get the next byte if it is due, or -1
+        synchronized int poll() {
+            if(mCount == 0 || mDue[mHead] > System.nanoTime()) return -1;
+            return remove();
+        }
+
+        // Wait for the next byte to be due, -1 when closed
+        synchronized int take() throws InterruptedException {
+            while(true) {
+                if(mClosed) return -1;
+                if(mCount == 0) {
+                    wait();
+                    continue;
+                }
+                long remaining = mDue[mHead] - System.nanoTime();
+                if(remaining <= 0) return remove();
+                TimeUnit.NANOSECONDS.timedWait(this, remaining);
+            }
+        }
+
+        private int remove() {
+            int b = mBytes[mHead] & 0xFF;
+            mHead = (mHead + 1) % mBytes.length;
+            --mCount;
+            notifyAll();
+            return b;
+        }
+
+        synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+
+        synchronized boolean isClosed() {
+            return mClosed && mCount == 0;
+        }
+    }
+
+    /**
+     * Command parser mirroring the loop of telebot.ino
+     */
+    private class Firmware {
+        private final Link mOut;
+        private final StringBuilder mLine = new StringBuilder();
+        private final byte[] mFrame = new byte[8];
+        private int mFrameLength;
+        private int mLinkVersion;
+
+        Firmware(Link out) {
+            mOut = out;
+        }
+
+        void receive(byte b) throws InterruptedException {
+            // Binary frames, only recognized at the beginning of a line
+            if(mFrameLength > 0 || (b == FRAME_START && mLine.length() == 0)) {
+                mFrame[mFrameLength++] = b;
+                if(mFrameLength == 2 && frameLength(mFrame[1]) == 0) {
+                    mFrameLength = 0;   // Unknown opcode, resynchronize
+                }
+                else if(mFrameLength >= 2 && mFrameLength == frameLength(mFrame[1])) {
+                    processFrame();
+                    mFrameLength = 0;
+                }
+                return;
+            }
+
+            if(b != '\n') {
+                if(b != '\r' && mLine.length() < MAX_LINE) mLine.append((char) (b & 0xFF));
+            }
+            else if(mLine.length() > 0) {
+                processLine();
+                mLine.setLength(0);
+            }
+        }
+
+        private void processLine() throws InterruptedException {
+            mCommands.incrementAndGet();
+            char cmd = mLine.charAt(0);
+            int value = toInt(mLine.substring(1).trim());
+            switch(cmd) {
+                case 'L': setLeft(value); break;
+                case 'R': setRight(value); break;
+                case 'C': commit(); break;
+                case 'B': print("B " + mBattery + "\r\n"); break;
+                case 'P':
+                    mLinkVersion = Math.min(value, PROTOCOL_VERSION);
+                    print("P " + mLinkVersion + "\r\n");
+                    break;
+                default: print("E\r\n"); break;
+            }
+        }
+
+        private void processFrame() throws InterruptedException {
+            mCommands.incrementAndGet();
+            byte opcode = mFrame[1];
+            byte seq = mFrame[mFrameLength - 2];
+            if(BinaryProtocol.crc8(mFrame, 1, mFrameLength - 2) != mFrame[mFrameLength - 1]) {
+                mCrcErrors.incrementAndGet();
+                sendFrame('E', false, 0, seq);
+                return;
+            }
+
+            switch(opcode) {
+                case 'L': setLeft(mFrame[2]); break;
+                case 'R': setRight(mFrame[2]); break;
+                case 'C': commit(); acknowledge(seq); break;
+                case 'M': setLeft(mFrame[2]); setRight(mFrame[3]); commit(); acknowledge(seq); break;
+                case 'B': sendFrame('B', true, mBattery, seq); break;
+            }
+        }
+
+        private int frameLength(byte opcode) {
+            switch(opcode) {
+                case 'L': case 'R': return 5;
+                case 'C': case 'B': return 4;
+                case 'M': return 6;
+                default: return 0;
+            }
+        }
+
+        private void sendFrame(char opcode, boolean hasPayload, int payload, byte seq) throws InterruptedException {
+            byte[] frame = new byte[5];
+            int n = 0;
+            frame[n++] = FRAME_START;
+            frame[n++] = (byte) opcode;
+            if(hasPayload) frame[n++] = (byte) payload;
+            frame[n++] = seq;
+            frame[n] = BinaryProtocol.crc8(frame, 1, n - 1);
+            for(int i = 0; i <= n; ++i) mOut.put(frame[i]);
+        }
+
+        private void acknowledge(byte seq) throws InterruptedException {
+            if(mLinkVersion >= 2) sendFrame('A', false, 0, seq);
+        }
+
+        private void print(String text) throws InterruptedException {
+            for(byte b : text.getBytes(StandardCharsets.US_ASCII)) mOut.put(b);
+        }
+
+        private void setLeft(int value) {
+            mTempLeft = Math.max(-100, Math.min(100, value));
+        }
+
+        private void setRight(int value) {
+            mTempRight = Math.max(-100, Math.min(100, value));
+        }
+
+        private void commit() {
+            mLeft = mTempLeft;
+            mRight = mTempRight;
+            mCommits.incrementAndGet();
+            Listener listener = mListener;
+            if(listener != null) listener.onControl(mLeft, mRight);
+        }
+    }
+
+    // Like Arduino String.toInt(), leading digits with an optional sign, 0 otherwise
+    private static int toInt(String s) {
+        int pos = 0;
+        boolean negative = false;
+        if(pos < s.length() && (s.charAt(pos) == '-' || s.charAt(pos) == '+'))
+            negative = (s.charAt(pos++) == '-');
+        int value = 0;
+        while(pos < s.length() && Character.isDigit(s.charAt(pos)))
+            value = value * 10 + (s.charAt(pos++) - '0');
+        return negative ? -value : value;
+    }
+
+    /**
+     * Drive the simulator through a SerialHandler and measure the time from setControl to commit
+     */
+    private static void measure(FirmwareSimulator simulator, int port, int count) throws Exception {
+        final Object lock = new Object();
+        final int[] committed = { Integer.MIN_VALUE };
+        simulator.setListener(new Listener() {
+            @Override
+            public void onControl(int left, int right) {
+                synchronized(lock) {
+                    committed[0] = left;
+                    lock.notifyAll();
+                }
+            }
+        });
+
+        SerialHandler handler = new SerialHandler(new TcpTransport("127.0.0.1", port), new SerialHandler.Listener() {
+            @Override
+            public void onBattery(int percent) {
+
+            }
+        });
+
+        LatencyHistogram latency = new LatencyHistogram();
+        int lost = 0;
+        for(int i = 0; i < count; ++i) {
+            int value = (i % 2 == 0 ? 1 : -1) * (1 + i % 100);
+            long start = System.nanoTime();
+            long deadline = System.currentTimeMillis() + 2000;
+            handler.setControl(value, -value);
+            synchronized(lock) {
+                long remaining;
+                while(committed[0] != value && (remaining = deadline - System.currentTimeMillis()) > 0)
+                    lock.wait(remaining);
+                if(committed[0] == value) latency.recordSince(start);
+                else ++lost;
+            }
+            Thread.sleep(20);
+        }
+
+        System.out.println(String.format(Locale.US, "%d controls, %d lost, latency us p50=%d p90=%d p99=%d max=%d",
+                count, lost,
+                TimeUnit.NANOSECONDS.toMicros(latency.getPercentile(0.5)),
+                TimeUnit.NANOSECONDS.toMicros(latency.getPercentile(0.9)),
+                TimeUnit.NANOSECONDS.toMicros(latency.getPercentile(0.99)),
+                TimeUnit.NANOSECONDS.toMicros(latency.getMax())));
+        System.out.println(simulator.getStats());
+        System.out.println(handler.getMetrics().toJson().toString(2));
+        handler.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = 19000;
+        int measure = 0;
+        FirmwareSimulator simulator = null;
+        try {
+            if(args.length % 2 != 0) throw new IllegalArgumentException("Missing value for " + args[args.length - 1]);
+            for(int i = 0; i < args.length; i+= 2)
+                if(args[i].equals("-p")) port = Integer.parseInt(args[i + 1]);
+            simulator = new FirmwareSimulator(port);
+
+            for(int i = 0; i < args.length; i+= 2) {
+                String value = args[i + 1];
+                switch(args[i]) {
+                    case "-p": break;
+                    case "-b": simulator.setBaudRate(Integer.parseInt(value)); break;
+                    case "-l": simulator.setLatency(Integer.parseInt(value)); break;
+                    case "-x": simulator.setRxBufferSize(Integer.parseInt(value)); break;
+                    case "-s": simulator.setStep(Integer.parseInt(value)); break;
+                    case "-d": simulator.setDisconnectInterval((long) (Double.parseDouble(value) * 1000)); break;
+                    case "-B": simulator.setBattery(Integer.parseInt(value)); break;
+                    case "-n": measure = Integer.parseInt(value); break;
+                    default: throw new IllegalArgumentException("Unknown option " + args[i]);
+                }
+            }
+        } catch(IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: FirmwareSimulator [-p port] [-b baud] [-l latency ms] [-x rx buffer] "
+                    + "[-s step ms] [-d mean seconds between disconnects] [-B battery percent] [-n controls to measure]");
+            System.exit(1);
+        }
+
+        simulator.start();
+        if(measure > 0) {
+            Benchmarks.muteLog();
+            measure(simulator, port, measure);
+            simulator.stop();
+            System.exit(0);
+        }
+
+        while(true) {
+            Thread.sleep(5000);
+            System.out.println(simulator.getStats());
+        }
+    }
+}
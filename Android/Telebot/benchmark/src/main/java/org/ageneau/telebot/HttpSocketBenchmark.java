@@ -0,0 +1,138 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Control requests per second over loopback sockets for each engine
+ * The blocking engine closes the connection after each response, the NIO engine keeps it alive
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HttpSocketBenchmark {
+
+    private static final int PORT = 11699;
+
+    @State(Scope.Benchmark)
+    public static class Server {
+
+        @Param({"BLOCKING", "NIO"})
+        public String engine;
+
+        SerialHttpServer mServer;
+
+        @Setup(Level.Trial)
+        public void setup() throws Exception {
+            Benchmarks.muteLog();
+            mServer = new SerialHttpServer(PORT, FakeDevice.connect());
+            mServer.setEngine(HttpServer.Engine.valueOf(engine));
+            mServer.start();
+            Thread.sleep(200);  // Let the server bind
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() {
+            mServer.stop();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Client {
+        final byte[] mRequest = Benchmarks.request("POST");
+        final byte[] mBuffer = new byte[4096];
+        Socket mSocket;
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws IOException {
+            if(mSocket != null) mSocket.close();
+        }
+    }
+
+    @Benchmark
+    public int control(Server server, Client client) throws IOException {
+        boolean keepAlive = server.engine.equals("NIO");
+        if(client.mSocket == null) {
+            client.mSocket = new Socket("127.0.0.1", PORT);
+            client.mSocket.setTcpNoDelay(true);
+        }
+
+        OutputStream out = client.mSocket.getOutputStream();
+        out.write(client.mRequest);
+        out.flush();
+
+        int length = readResponse(client.mSocket.getInputStream(), client.mBuffer, keepAlive);
+        if(!keepAlive) {
+            client.mSocket.close();
+            client.mSocket = null;
+        }
+        return length;
+    }
+
+    // Read a response, until end of stream or until the announced length is received
+    private static int readResponse(InputStream in, byte[] buffer, boolean keepAlive) throws IOException {
+        int length = 0;
+        int expected = -1;
+        while(expected < 0 || length < expected) {
+            int n = in.read(buffer, length, buffer.length - length);
+            if(n < 0) {
+                if(keepAlive) throw new EOFException();
+                return length;
+            }
+            length+= n;
+            if(expected < 0 && keepAlive) expected = expectedLength(buffer, length);
+        }
+        return length;
+    }
+
+    // Compute the whole response length once headers are received, or -1
+    private static int expectedLength(byte[] buffer, int length) {
+        String head = new String(buffer, 0, length, StandardCharsets.US_ASCII);
+        int end = head.indexOf("\r\n\r\n");
+        if(end < 0) return -1;
+        int pos = head.indexOf("Content-Length: ");
+        int contentLength = 0;
+        if(pos >= 0 && pos < end)
+            contentLength = Integer.parseInt(head.substring(pos + 16, head.indexOf("\r\n", pos)));
+        return end + 4 + contentLength;
+    }
+}
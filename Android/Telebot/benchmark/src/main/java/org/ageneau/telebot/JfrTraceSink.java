@@ -0,0 +1,86 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import jdk.jfr.Category;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.FlightRecorder;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.StackTrace;
+import jdk.jfr.Timespan;
+
+/**
+ * Trace sink emitting spans as JDK Flight Recorder events
+ * Record with -XX:StartFlightRecording, then filter org.ageneau.telebot.Span events by trace ID,
+ * for instance with: jfr print --events org.ageneau.telebot.Span recording.jfr
+ */
+public class JfrTraceSink implements Trace.Sink {
+
+    @Name("org.ageneau.telebot.Span")
+    @Label("Command Span")
+    @Category("Telebot")
+    @Description("Stage of a command on its way from the HTTP request to the device")
+    @StackTrace(false)
+    static class SpanEvent extends Event {
+
+        @Label("Trace ID")
+        long trace;
+
+        @Label("Stage")
+        String stage;
+
+        // The event is committed when the span is reported, after its end
+        @Label("Span Duration")
+        @Timespan(Timespan.NANOSECONDS)
+        long spanDuration;
+
+        @Label("Age")
+        @Description("Time from the end of the span to the event")
+        @Timespan(Timespan.NANOSECONDS)
+        long age;
+    }
+
+    /**
+     * Install the sink if Flight Recorder is available and started, return true on success
+     * Tracing is left disabled otherwise, so runs without a recording are not affected
+     */
+    public static boolean installIfRecording() {
+        try {
+            Class.forName("jdk.jfr.FlightRecorder");
+        } catch(ClassNotFoundException e) {
+            return false;   // Runtime without Flight Recorder
+        }
+        if(!FlightRecorder.isInitialized()) return false;
+        Trace.setSink(new JfrTraceSink());
+        return true;
+    }
+
+    @Override
+    public void span(long trace, int span, long start, long end) {
+        SpanEvent event = new SpanEvent();
+        if(!event.isEnabled()) return;
+        event.trace = trace;
+        event.stage = Trace.getName(span);
+        event.spanDuration = end - start;
+        event.age = System.nanoTime() - end;
+        event.commit();
+    }
+}
@@ -0,0 +1,351 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Load generator running concurrent clients against the control API
+ * Usage: LoadGenerator [-c connections] [-r rate] [-d seconds] [-w seconds]
+ *                      [-m POST=80,GET=15,OPTIONS=5] [-e BLOCKING|NIO] [-t host:port]
+ *
+ * With a rate, requests are sent open-loop on a fixed schedule and latency is measured from
+ * the scheduled time, so a stalled server is charged for the requests it delayed
+ * (coordinated omission correction). Without a rate, each client sends as soon as it is answered.
+ * Without a target, an in-process server backed by a fake device is started, and when a flight
+ * recording is running its commands are traced as JFR events.
+ */
+public class LoadGenerator {
+
+    private static final String[] TYPES = { "POST", "GET", "OPTIONS" };
+    private static final int PORT = 11700;
+
+    private int mConnections = 16;
+    private double mRate = 0;           // requests per second over all connections, 0 for closed-loop
+    private int mDuration = 10;         // s
+    private int mWarmup = 2;            // s
+    private int[] mWeights = { 80, 15, 5 };
+    private String mEngine = "NIO";
+    private String mHost = null;
+    private int mPort = PORT;
+
+    private volatile Stats mStats = new Stats();
+    private volatile boolean mRunning = true;
+
+    /**
+     * Latencies and counters of a measurement period
+     */
+    private static class Stats {
+        final LatencyHistogram mCorrected = new LatencyHistogram();   // from scheduled time
+        final LatencyHistogram mService = new LatencyHistogram();     // from actual send
+        final LatencyHistogram[] mByType = new LatencyHistogram[TYPES.length];
+        final AtomicLong mErrors = new AtomicLong();
+        final AtomicLong mReconnects = new AtomicLong();
+
+        Stats() {
+            for(int i = 0; i < mByType.length; ++i)
+                mByType[i] = new LatencyHistogram();
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        LoadGenerator generator = new LoadGenerator();
+        try {
+            generator.parse(args);
+        } catch(IllegalArgumentException e) {
+            System.err.println(e.getMessage());
+            System.err.println("Usage: LoadGenerator [-c connections] [-r rate] [-d seconds] [-w seconds] "
+                    + "[-m POST=80,GET=15,OPTIONS=5] [-e BLOCKING|NIO] [-t host:port]");
+            System.exit(1);
+        }
+        generator.run();
+        System.exit(0);
+    }
+
+    private void parse(String[] args) {
+        for(int i = 0; i < args.length; i+= 2) {
+            if(i + 1 == args.length)
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            String value = args[i + 1];
+            switch(args[i]) {
+                case "-c": mConnections = Integer.parseInt(value); break;
+                case "-r": mRate = Double.parseDouble(value); break;
+                case "-d": mDuration = Integer.parseInt(value); break;
+                case "-w": mWarmup = Integer.parseInt(value); break;
+                case "-e": mEngine = value.toUpperCase(Locale.US); break;
+                case "-m": mWeights = parseMix(value); break;
+                case "-t": {
+                    int colon = value.lastIndexOf(':');
+                    if(colon < 0) throw new IllegalArgumentException("Invalid target " + value);
+                    mHost = value.substring(0, colon);
+                    mPort = Integer.parseInt(value.substring(colon + 1));
+                    break;
+                }
+                default:
+                    throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+        if(mConnections < 1 || mDuration < 1 || mWarmup < 0 || mRate < 0)
+            throw new IllegalArgumentException("Invalid options");
+    }
+
+    // Parse weights like "POST=80,GET=15,OPTIONS=5", missing types get 0
+    private static int[] parseMix(String mix) {
+        int[] weights = new int[TYPES.length];
+        int total = 0;
+        for(String entry : mix.split(",")) {
+            int eq = entry.indexOf('=');
+            if(eq < 0) throw new IllegalArgumentException("Invalid mix entry " + entry);
+            String type = entry.substring(0, eq).trim().toUpperCase(Locale.US);
+            int weight = Integer.parseInt(entry.substring(eq + 1).trim());
+            int index = indexOf(type);
+            if(index < 0 || weight < 0) throw new IllegalArgumentException("Invalid mix entry " + entry);
+            weights[index] = weight;
+            total+= weight;
+        }
+        if(total == 0) throw new IllegalArgumentException("Empty mix");
+        return weights;
+    }
+
+    private static int indexOf(String type) {
+        for(int i = 0; i < TYPES.length; ++i)
+            if(TYPES[i].equals(type)) return i;
+        return -1;
+    }
+
+    private void run() throws Exception {
+        SerialHttpServer server = null;
+        if(mHost == null) {
+            Benchmarks.muteLog();
+            if(JfrTraceSink.installIfRecording()) System.out.println("Tracing commands to the flight recording");
+            server = new SerialHttpServer(mPort, FakeDevice.connect());
+            server.setEngine(HttpServer.Engine.valueOf(mEngine));
+            server.start();
+            Thread.sleep(200);  // Let the server bind
+            mHost = "127.0.0.1";
+        }
+
+        System.out.println(String.format(Locale.US, "%d connections, %s, %s=%d %s=%d %s=%d, target %s:%d%s",
+                mConnections,
+                (mRate > 0 ? String.format(Locale.US, "open-loop at %.0f req/s", mRate) : "closed-loop"),
+                TYPES[0], mWeights[0], TYPES[1], mWeights[1], TYPES[2], mWeights[2],
+                mHost, mPort, (server != null ? " (in-process " + mEngine + ")" : "")));
+
+        long start = System.nanoTime();
+        Client[] clients = new Client[mConnections];
+        for(int i = 0; i < clients.length; ++i) {
+            clients[i] = new Client(i, start);
+            clients[i].start();
+        }
+
+        Thread.sleep(TimeUnit.SECONDS.toMillis(mWarmup));
+        mStats = new Stats();
+        long measureStart = System.nanoTime();
+        Thread.sleep(TimeUnit.SECONDS.toMillis(mDuration));
+        Stats stats = mStats;
+        mStats = new Stats();   // Requests completing during shutdown are not counted
+        long measureEnd = System.nanoTime();
+
+        mRunning = false;
+        for(Client client : clients) {
+            client.close();
+            client.join(1000);
+        }
+
+        report(stats, measureEnd - measureStart);
+        if(server != null) {
+            System.out.println("Server metrics: " + server.getMetrics().toJson().toString(2));
+            server.stop();
+        }
+    }
+
+    private void report(Stats stats, long elapsed) {
+        double seconds = elapsed / 1e9;
+        long count = stats.mCorrected.getCount();
+        System.out.println(String.format(Locale.US, "%d requests in %.1f s, %.0f req/s, %d errors, %d reconnects",
+                count, seconds, count / seconds, stats.mErrors.get(), stats.mReconnects.get()));
+
+        System.out.println(String.format(Locale.US, "%-10s %9s %9s %9s %9s %9s %9s",
+                "us", "count", "p50", "p90", "p99", "p99.9", "max"));
+        print("corrected", stats.mCorrected);
+        print("service", stats.mService);
+        for(int i = 0; i < TYPES.length; ++i)
+            if(mWeights[i] > 0) print(TYPES[i], stats.mByType[i]);
+    }
+
+    private static void print(String name, LatencyHistogram histogram) {
+        System.out.println(String.format(Locale.US, "%-10s %9d %9d %9d %9d %9d %9d",
+                name, histogram.getCount(),
+                micros(histogram.getPercentile(0.5)),
+                micros(histogram.getPercentile(0.9)),
+                micros(histogram.getPercentile(0.99)),
+                micros(histogram.getPercentile(0.999)),
+                micros(histogram.getMax())));
+    }
+
+    private static long micros(long nanos) {
+        return TimeUnit.NANOSECONDS.toMicros(nanos);
+    }
+
+    /**
+     * Client thread sending requests over one connection, reconnecting when the server closes it
+     */
+    private class Client extends Thread {
+
+        private final byte[][] mRequests = new byte[TYPES.length][];
+        private final byte[] mBuffer = new byte[4096];
+        private final Random mRandom;
+        private final long mInterval;   // ns between scheduled requests, 0 for closed-loop
+        private long mNext;
+        private volatile Socket mSocket;
+
+        Client(int index, long start) {
+            super("Client-" + index);
+            setDaemon(true);
+            for(int i = 0; i < TYPES.length; ++i)
+                mRequests[i] = Benchmarks.request(TYPES[i]);
+            mRandom = new Random(index);
+            mInterval = (mRate > 0 ? (long) (1e9 * mConnections / mRate) : 0);
+            // Spread clients over the interval so arrivals are evenly spaced
+            mNext = start + mInterval * index / mConnections;
+        }
+
+        @Override
+        public void run() {
+            int total = 0;
+            for(int weight : mWeights) total+= weight;
+
+            while(mRunning) {
+                int pick = mRandom.nextInt(total);
+                int type = 0;
+                while(pick >= mWeights[type]) pick-= mWeights[type++];
+
+                long scheduled;
+                if(mInterval > 0) {
+                    scheduled = mNext;
+                    mNext+= mInterval;
+                    long remaining;
+                    while((remaining = scheduled - System.nanoTime()) > 0)
+                        LockSupport.parkNanos(remaining);
+                }
+                else {
+                    scheduled = System.nanoTime();
+                }
+
+                Stats stats = mStats;
+                long sent = System.nanoTime();
+                try {
+                    send(mRequests[type], stats);
+                } catch(IOException e) {
+                    if(mRunning) stats.mErrors.incrementAndGet();
+                    closeSocket();
+                    continue;
+                }
+                long end = System.nanoTime();
+
+                stats.mCorrected.record(end - scheduled);
+                stats.mService.record(end - sent);
+                stats.mByType[type].record(end - scheduled);
+            }
+            closeSocket();
+        }
+
+        // Send a request and read the whole response
+        private void send(byte[] request, Stats stats) throws IOException {
+            if(mSocket == null) {
+                mSocket = new Socket();
+                mSocket.setTcpNoDelay(true);
+                mSocket.connect(new InetSocketAddress(mHost, mPort));
+                stats.mReconnects.incrementAndGet();
+            }
+
+            OutputStream out = mSocket.getOutputStream();
+            out.write(request);
+            out.flush();
+
+            if(!readResponse(mSocket.getInputStream()))
+                closeSocket();
+        }
+
+        // Read a response, return false if the server closes the connection after it
+        private boolean readResponse(InputStream in) throws IOException {
+            int length = 0;
+            int expected = -1;
+            boolean keepAlive = true;
+            while(expected < 0 || length < expected) {
+                if(length == mBuffer.length) throw new IOException("Response too large");
+                int n = in.read(mBuffer, length, mBuffer.length - length);
+                if(n < 0) {
+                    if(expected < 0) throw new EOFException();
+                    break;
+                }
+                length+= n;
+
+                if(expected < 0) {
+                    String head = new String(mBuffer, 0, length, StandardCharsets.US_ASCII);
+                    int end = head.indexOf("\r\n\r\n");
+                    if(end < 0) continue;
+                    if(!head.startsWith("HTTP/1.1 2") && !head.startsWith("HTTP/1.1 3"))
+                        throw new IOException("Unexpected status " + head.substring(0, head.indexOf("\r\n")));
+                    keepAlive = (head.indexOf("Connection: close") < 0);
+                    int pos = head.indexOf("Content-Length: ");
+                    int contentLength = 0;
+                    if(pos >= 0 && pos < end)
+                        contentLength = Integer.parseInt(head.substring(pos + 16, head.indexOf("\r\n", pos)));
+                    expected = end + 4 + contentLength;
+                }
+            }
+            return keepAlive;
+        }
+
+        private void closeSocket() {
+            if(mSocket != null) {
+                try {
+                    mSocket.close();
+                } catch(IOException e) {
+                    // Ignore
+                }
+                mSocket = null;
+            }
+        }
+
+        // Unblock the thread if it waits for a response
+        void close() {
+            Socket socket = mSocket;
+            if(socket != null) {
+                try {
+                    socket.close();
+                } catch(IOException e) {
+                    // Ignore
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,105 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of encoding control commands and decoding device messages
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SerialProtocolBenchmark {
+
+    private final CommandBuffer mBuffer = new CommandBuffer(32);
+    private final TextProtocol mText = new TextProtocol();
+    private final BinaryProtocol mBinary = new BinaryProtocol();
+
+    private byte[] mTextLine;
+    private byte[] mBinaryFrame;
+    private FrameDecoder mDecoder;
+    private Blackhole mBlackhole;
+    private int mLeft;
+
+    @Setup
+    public void setup(Blackhole blackhole) {
+        mBlackhole = blackhole;
+        mDecoder = new FrameDecoder(256, new FrameDecoder.Listener() {
+            @Override
+            public void onCommand(char command, int value) {
+                mBlackhole.consume(command);
+                mBlackhole.consume(value);
+            }
+        });
+
+        mTextLine = "B 42\r\n".getBytes();
+
+        // Battery frame as sent by the firmware
+        CommandBuffer frame = new CommandBuffer(8);
+        frame.put(BinaryProtocol.START);
+        frame.put(BinaryProtocol.OP_BATTERY);
+        frame.put((byte) 42);
+        frame.put((byte) 0);
+        frame.put(BinaryProtocol.crc8(frame.getBuffer(), 1, 3));
+        mBinaryFrame = new byte[frame.getLength()];
+        System.arraycopy(frame.getBuffer(), 0, mBinaryFrame, 0, mBinaryFrame.length);
+    }
+
+    @Benchmark
+    public int encodeText() {
+        mLeft = (mLeft + 1) % 100;
+        mBuffer.reset();
+        mText.encodeControl(mBuffer, mLeft, -mLeft);
+        return mBuffer.getLength();
+    }
+
+    @Benchmark
+    public int encodeBinary() {
+        mLeft = (mLeft + 1) % 100;
+        mBuffer.reset();
+        mBinary.encodeControl(mBuffer, mLeft, -mLeft);
+        return mBuffer.getLength();
+    }
+
+    @Benchmark
+    public void decodeText() {
+        mDecoder.feed(mTextLine, 0, mTextLine.length);
+    }
+
+    @Benchmark
+    public void decodeBinary() {
+        mDecoder.feed(mBinaryFrame, 0, mBinaryFrame.length);
+    }
+}
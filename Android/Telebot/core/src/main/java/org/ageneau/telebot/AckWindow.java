@@ -0,0 +1,213 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Sliding window of commands waiting for acknowledgement, with RTT estimation and rate adaptation
+ * The device acknowledges commands in order, so an acknowledgement also accounts for the
+ * unacknowledged commands sent before it, which are lost.
+ *
+ * The send rate follows the link: it grows slowly while RTT stays near its minimum, and is cut
+ * when RTT shows commands queueing in the device buffer or when commands are lost.
+ */
+class AckWindow {
+
+    private static final int CAPACITY = 16;
+    private static final long INITIAL_TIMEOUT = TimeUnit.SECONDS.toNanos(1);
+    private static final long MIN_TIMEOUT = TimeUnit.MILLISECONDS.toNanos(200);
+    private static final long MAX_TIMEOUT = TimeUnit.SECONDS.toNanos(2);
+    private static final long QUEUEING_MARGIN = TimeUnit.MILLISECONDS.toNanos(10);
+
+    private static final double RATE_INCREASE = 4;      // bytes per second, per acknowledgement
+    private static final double QUEUEING_DECREASE = 0.8;
+    private static final double LOSS_DECREASE = 0.5;
+
+    private final int mSize;
+    private final TokenBucket mPacer;
+    private final double mMaxRate, mMinRate;
+
+    // In-flight commands, oldest first
+    private final int[] mSequences = new int[CAPACITY];
+    private final long[] mSendTimes = new long[CAPACITY];
+    private int mHead, mCount;
+
+    private boolean mEnabled;
+    private long mSrtt, mRttVar, mMinRtt;   // ns, 0 until the first sample
+    private long mLastDecrease;
+    private long mAcknowledged, mLost;
+
+    /**
+     * Create window of size commands adapting the pacer rate between minRate and its current rate
+     */
+    AckWindow(int size, TokenBucket pacer, double minRate) {
+        if(size < 1 || size > CAPACITY)
+            throw new IllegalArgumentException("Invalid window size");
+        mSize = size;
+        mPacer = pacer;
+        mMaxRate = pacer.getRate();
+        mMinRate = minRate;
+    }
+
+    /**
+     * Enable or disable acknowledgements for a new link, in-flight commands are forgotten
+     */
+    synchronized void reset(boolean enabled) {
+        mEnabled = enabled;
+        mHead = 0;
+        mCount = 0;
+        mMinRtt = 0;    // The new link may be different
+        if(!enabled) mPacer.setRate(mMaxRate);
+    }
+
+    synchronized boolean isEnabled() {
+        return mEnabled;
+    }
+
+    /**
+     * Get the time to wait for room in the window in ns, 0 if a command can be sent
+     * Commands not acknowledged within the timeout are counted as lost
+     */
+    synchronized long getRoomDelay() {
+        if(!mEnabled) return 0;
+
+        long now = System.nanoTime();
+        while(mCount > 0 && now - mSendTimes[mHead] >= getTimeout()) {
+            remove();
+            lost(now);
+        }
+        if(mCount < mSize) return 0;
+        return Math.max(mSendTimes[mHead] + getTimeout() - now, 1);
+    }
+
+    /**
+     * Record a command sent with the sequence number
+     */
+    synchronized void onSent(int sequence) {
+        if(!mEnabled) return;
+        if(mCount == CAPACITY) remove();    // Stop commands go beyond the window
+        int tail = (mHead + mCount) % CAPACITY;
+        mSequences[tail] = sequence & 0xFF;
+        mSendTimes[tail] = System.nanoTime();
+        ++mCount;
+    }
+
+    /**
+     * Process an acknowledgement, return the RTT in ns, or -1 if the sequence number is not in flight
+     */
+    synchronized long onAck(int sequence) {
+        int index = find(sequence);
+        if(index < 0) return -1;
+
+        long now = System.nanoTime();
+        for(int i = 0; i < index; ++i) {
+            remove();
+            lost(now);
+        }
+        long sample = now - mSendTimes[mHead];
+        remove();
+        ++mAcknowledged;
+        sample(sample, now);
+        return sample;
+    }
+
+    /**
+     * Process a rejection by the device, the command is lost
+     */
+    synchronized void onError(int sequence) {
+        int index = find(sequence);
+        if(index < 0) return;
+
+        long now = System.nanoTime();
+        for(int i = 0; i <= index; ++i) {
+            remove();
+            lost(now);
+        }
+    }
+
+    /**
+     * Get the state as JSON, times in microseconds and rate in bytes per second
+     */
+    synchronized JSONObject toJson() throws JSONException {
+        JSONObject object = new JSONObject();
+        object.put("acknowledgements", mEnabled);
+        if(mEnabled) {
+            object.put("rtt", TimeUnit.NANOSECONDS.toMicros(mSrtt));
+            object.put("rttVar", TimeUnit.NANOSECONDS.toMicros(mRttVar));
+            object.put("minRtt", TimeUnit.NANOSECONDS.toMicros(mMinRtt));
+            object.put("inFlight", mCount);
+            object.put("window", mSize);
+        }
+        object.put("rate", Math.round(mPacer.getRate()));
+        object.put("acks", mAcknowledged);
+        object.put("lost", mLost);
+        return object;
+    }
+
+    // Retransmission timeout like TCP, bounded
+    private long getTimeout() {
+        if(mSrtt == 0) return INITIAL_TIMEOUT;
+        return Math.min(Math.max(mSrtt + 4 * mRttVar, MIN_TIMEOUT), MAX_TIMEOUT);
+    }
+
+    // Update estimations like RFC 6298, and adapt the rate
+    private void sample(long rtt, long now) {
+        if(mSrtt == 0) {
+            mSrtt = rtt;
+            mRttVar = rtt / 2;
+        }
+        else {
+            mRttVar = (3 * mRttVar + Math.abs(mSrtt - rtt)) / 4;
+            mSrtt = (7 * mSrtt + rtt) / 8;
+        }
+        if(mMinRtt == 0 || rtt < mMinRtt) mMinRtt = rtt;
+
+        if(rtt > 2 * mMinRtt + QUEUEING_MARGIN) decrease(QUEUEING_DECREASE, now);
+        else mPacer.setRate(Math.min(mPacer.getRate() + RATE_INCREASE, mMaxRate));
+    }
+
+    private void lost(long now) {
+        ++mLost;
+        decrease(LOSS_DECREASE, now);
+    }
+
+    // Decrease the rate at most once per round trip
+    private void decrease(double factor, long now) {
+        if(mLastDecrease != 0 && now - mLastDecrease < mSrtt) return;
+        mLastDecrease = now;
+        mPacer.setRate(Math.max(mPacer.getRate() * factor, mMinRate));
+    }
+
+    // Position of the sequence number in the window, or -1
+    private int find(int sequence) {
+        sequence&= 0xFF;
+        for(int i = 0; i < mCount; ++i)
+            if(mSequences[(mHead + i) % CAPACITY] == sequence) return i;
+        return -1;
+    }
+
+    private void remove() {
+        mHead = (mHead + 1) % CAPACITY;
+        --mCount;
+    }
+}
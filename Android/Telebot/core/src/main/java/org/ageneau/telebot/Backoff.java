@@ -0,0 +1,59 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import java.util.Random;
+
+/**
+ * Exponential backoff with jitter for retry delays
+ * Each delay is drawn between half and all of the current bound, which doubles up to a maximum
+ */
+class Backoff {
+
+    private final long mInitial;
+    private final long mMax;
+    private final Random mRandom = new Random();
+    private long mBound;
+
+    /**
+     * Create backoff with specified initial and maximum delays in milliseconds
+     */
+    Backoff(long initial, long max) {
+        mInitial = initial;
+        mMax = max;
+        mBound = initial;
+    }
+
+    /**
+     * Get the next delay in milliseconds
+     */
+    long next() {
+        long bound = mBound;
+        mBound = Math.min(bound * 2, mMax);
+        long half = bound / 2;
+        return half + (long) (mRandom.nextDouble() * (bound - half));
+    }
+
+    /**
+     * Start again from the initial delay, after a success
+     */
+    void reset() {
+        mBound = mInitial;
+    }
+}
@@ -0,0 +1,115 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+/**
+ * Compact binary framing, negotiated with the "P" text command
+ * A frame is: start byte, opcode, fixed-width signed payload, sequence number, CRC-8
+ * The CRC covers the opcode, payload and sequence number
+ */
+class BinaryProtocol extends SerialProtocol {
+
+    static final int VERSION = 1;
+    static final int ACK_VERSION = 2;       // Commits are acknowledged
+
+    static final byte START = (byte) 0xA5;
+
+    static final byte OP_LEFT    = 'L';     // int8 left, phone to device
+    static final byte OP_RIGHT   = 'R';     // int8 right, phone to device
+    static final byte OP_COMMIT  = 'C';     // no payload, phone to device
+    static final byte OP_CONTROL = 'M';     // int8 left, int8 right, implies commit
+    static final byte OP_BATTERY = 'B';     // no payload to device, uint8 percent from device
+    static final byte OP_ERROR   = 'E';     // no payload, device to phone
+    static final byte OP_ACK     = 'A';     // no payload, device to phone, sequence of the commit
+
+    private static final int OVERHEAD = 4;  // start, opcode, sequence, CRC
+
+    private byte mSequence;
+
+    @Override
+    void encodeControl(CommandBuffer buffer, int left, int right) {
+        int start = buffer.getLength();
+        buffer.put(START);
+        buffer.put(OP_CONTROL);
+        buffer.put(clamp(left));
+        buffer.put(clamp(right));
+        finish(buffer, start);
+    }
+
+    @Override
+    void encodeBatteryRequest(CommandBuffer buffer) {
+        int start = buffer.getLength();
+        buffer.put(START);
+        buffer.put(OP_BATTERY);
+        finish(buffer, start);
+    }
+
+    @Override
+    boolean isBinary() {
+        return true;
+    }
+
+    @Override
+    int getLastSequence() {
+        return (mSequence - 1) & 0xFF;
+    }
+
+    /**
+     * Get the whole length of a frame received from the device, or -1 if the opcode is unknown
+     */
+    static int frameLength(int opcode) {
+        switch(opcode) {
+            case OP_BATTERY: return OVERHEAD + 1;
+            case OP_ERROR:   return OVERHEAD;
+            case OP_ACK:     return OVERHEAD;
+            default:         return -1;
+        }
+    }
+
+    /**
+     * Check the CRC of a whole frame
+     */
+    static boolean isValid(byte[] frame, int offset, int length) {
+        return crc8(frame, offset + 1, length - 2) == frame[offset + length - 1];
+    }
+
+    /**
+     * CRC-8 with polynomial 0x07
+     */
+    static byte crc8(byte[] data, int offset, int length) {
+        int crc = 0;
+        for(int i = offset; i < offset + length; ++i) {
+            crc^= data[i] & 0xFF;
+            for(int j = 0; j < 8; ++j)
+                crc = ((crc & 0x80) != 0 ? (crc << 1) ^ 0x07 : crc << 1) & 0xFF;
+        }
+        return (byte) crc;
+    }
+
+    // Append sequence number and CRC
+    private void finish(CommandBuffer buffer, int start) {
+        buffer.put(mSequence++);
+        byte[] b = buffer.getBuffer();
+        buffer.put(crc8(b, start + 1, buffer.getLength() - start - 1));
+    }
+
+    private static byte clamp(int value) {
+        return (byte) Math.max(-100, Math.min(100, value));
+    }
+}
@@ -0,0 +1,88 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+/**
+ * Reusable buffer for encoding a group of serial commands into a single write
+ */
+class CommandBuffer {
+
+    private byte[] mBuffer;
+    private int mLength;
+
+    CommandBuffer(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    void reset() {
+        mLength = 0;
+    }
+
+    byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Append a text command without parameter, like "C"
+     */
+    CommandBuffer appendLine(char command) {
+        put((byte) command);
+        put((byte) '\n');
+        return this;
+    }
+
+    /**
+     * Append a text command with an integer parameter, like "L -50"
+     */
+    CommandBuffer appendLine(char command, int value) {
+        put((byte) command);
+        put((byte) ' ');
+        putDecimal(value);
+        put((byte) '\n');
+        return this;
+    }
+
+    void put(byte b) {
+        if(mLength == mBuffer.length) {
+            byte[] buffer = new byte[mBuffer.length * 2];
+            System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+            mBuffer = buffer;
+        }
+        mBuffer[mLength++] = b;
+    }
+
+    // Write decimal digits without going through a String
+    private void putDecimal(int value) {
+        long v = value;
+        if(v < 0) {
+            put((byte) '-');
+            v = -v;
+        }
+        long div = 1;
+        while(div * 10 <= v) div*= 10;
+        while(div > 0) {
+            put((byte) ('0' + (v / div) % 10));
+            div/= 10;
+        }
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+/**
+ * Decoder pulling "left" and "right" integers straight from a JSON control body
+ * Anything unusual makes it give up so the caller can fall back to a full JSON parser
+ */
+final class ControlBodyDecoder {
+
+    private static final byte[] LEFT = { '"', 'l', 'e', 'f', 't', '"' };
+    private static final byte[] RIGHT = { '"', 'r', 'i', 'g', 'h', 't', '"' };
+
+    private static final long INVALID = Long.MIN_VALUE;
+
+    private ControlBodyDecoder() {}
+
+    /**
+     * Decode controls packed with ControlMailbox.pack(), or ControlMailbox.EMPTY on failure
+     */
+    static long decode(byte[] data, int offset, int length) {
+        int end = offset + length;
+        long left = findValue(data, offset, end, LEFT);
+        long right = findValue(data, offset, end, RIGHT);
+        if(left == INVALID || right == INVALID)
+            return ControlMailbox.EMPTY;
+        return ControlMailbox.pack((int) left, (int) right);
+    }
+
+    // Find the key followed by a colon and parse the number after it
+    private static long findValue(byte[] data, int start, int end, byte[] key) {
+        int pos = start;
+        while((pos = indexOf(data, pos, end, key)) >= 0) {
+            pos+= key.length;
+            int p = skipSpaces(data, pos, end);
+            if(p < end && data[p] == ':')
+                return parseNumber(data, skipSpaces(data, p + 1, end), end);
+        }
+        return INVALID;
+    }
+
+    // Parse an integer, truncating a fractional part like JSONObject.getInt()
+    private static long parseNumber(byte[] data, int pos, int end) {
+        boolean negative = false;
+        if(pos < end && data[pos] == '-') {
+            negative = true;
+            ++pos;
+        }
+
+        int start = pos;
+        long value = 0;
+        while(pos < end && data[pos] >= '0' && data[pos] <= '9') {
+            value = value * 10 + (data[pos++] - '0');
+            if(value > Integer.MAX_VALUE) return INVALID;
+        }
+        if(pos == start) return INVALID;
+
+        if(pos < end && data[pos] == '.') {
+            ++pos;
+            while(pos < end && data[pos] >= '0' && data[pos] <= '9') ++pos;
+        }
+
+        // The number must be followed by a separator
+        pos = skipSpaces(data, pos, end);
+        if(pos >= end || (data[pos] != ',' && data[pos] != '}'))
+            return INVALID;
+
+        return (negative ? -value : value);
+    }
+
+    private static int skipSpaces(byte[] data, int pos, int end) {
+        while(pos < end && (data[pos] == ' ' || data[pos] == '\t' || data[pos] == '\r' || data[pos] == '\n')) ++pos;
+        return pos;
+    }
+
+    private static int indexOf(byte[] data, int start, int end, byte[] pattern) {
+        for(int i = start; i <= end - pattern.length; ++i) {
+            int j = 0;
+            while(j < pattern.length && data[i + j] == pattern[j]) ++j;
+            if(j == pattern.length) return i;
+        }
+        return -1;
+    }
+}
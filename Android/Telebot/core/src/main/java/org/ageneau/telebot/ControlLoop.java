@@ -0,0 +1,143 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Fixed-rate control loop moving the motor outputs toward the latest target
+ * Speeding up is limited by the acceleration, slowing down is immediate so stops stay responsive
+ *
+ * Outputs are published at the tick rate while they change, a steady output is not re-sent
+ * since the writer skips controls equal to the last ones written.
+ */
+public class ControlLoop {
+
+    private static final String TAG = "ControlLoop";
+
+    private final SerialHandler mHandler;
+    private final int mRate;                // Hz
+    private final double mStep;             // Maximum change per tick, in percent
+
+    private final AtomicLong mTarget = new AtomicLong(ControlMailbox.pack(0, 0));
+    private volatile long mTrace;           // Trace of the request setting the target
+    private final Object mPublishLock = new Object();   // Orders tick outputs with stops
+    private ScheduledExecutorService mScheduler;
+
+    // Only accessed from the scheduler thread
+    private double mLeft, mRight;
+    private long mOutput = ControlMailbox.pack(0, 0);
+
+    /**
+     * Create loop for the handler, ticking at rate Hz with acceleration in percent per second
+     */
+    public ControlLoop(SerialHandler handler, int rate, int acceleration) {
+        if(rate <= 0 || acceleration <= 0)
+            throw new IllegalArgumentException("Invalid control loop configuration");
+        mHandler = handler;
+        mRate = rate;
+        mStep = (double) acceleration / rate;
+    }
+
+    /**
+     * Start ticking
+     */
+    public synchronized void start() {
+        if(mScheduler != null) return;
+        mScheduler = Executors.newSingleThreadScheduledExecutor();
+        long period = 1000000L / mRate;
+        mScheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    tick();
+                } catch(Exception e) {
+                    // An exception would cancel the schedule
+                    Log.e(TAG, "Control loop tick failed: " + e);
+                }
+            }
+        }, 0, period, TimeUnit.MICROSECONDS);
+    }
+
+    /**
+     * Stop ticking, the outputs are left as they are
+     */
+    public synchronized void stop() {
+        if(mScheduler == null) return;
+        mScheduler.shutdownNow();
+        mScheduler = null;
+    }
+
+    /**
+     * Set the target controls, values are in percent
+     */
+    public void setTarget(int left, int right) {
+        mTrace = Trace.current();
+
+        // A full stop does not wait for the next tick, and a tick
+        // computed from the previous target can not be published after it
+        if(left == 0 && right == 0) {
+            synchronized(mPublishLock) {
+                mTarget.set(ControlMailbox.pack(0, 0));
+                mHandler.stop();
+            }
+        }
+        else {
+            mTarget.set(ControlMailbox.pack(left, right));
+        }
+    }
+
+    private void tick() {
+        long target = mTarget.get();
+        mLeft = ramp(mLeft, ControlMailbox.left(target), mStep);
+        mRight = ramp(mRight, ControlMailbox.right(target), mStep);
+
+        // Only changes are sent, the writer would skip them anyway
+        long output = ControlMailbox.pack((int) Math.round(mLeft), (int) Math.round(mRight));
+        if(output != mOutput) {
+            synchronized(mPublishLock) {
+                // The target changed meanwhile, the next tick will follow it
+                if(mTarget.get() != target) return;
+                mOutput = output;
+
+                // The scheduler thread is shared, the trace only applies to this output
+                long previous = Trace.current();
+                Trace.setCurrent(mTrace);
+                try {
+                    mHandler.setControl(ControlMailbox.left(output), ControlMailbox.right(output));
+                } finally {
+                    Trace.setCurrent(previous);
+                }
+            }
+        }
+    }
+
+    // Move value toward target, by at most step when speeding up
+    private static double ramp(double value, int target, double step) {
+        if(value > 0 && target < value) value = Math.max(target, 0);
+        else if(value < 0 && target > value) value = Math.min(target, 0);
+
+        if(target > value) return Math.min(value + step, target);
+        if(target < value) return Math.max(value - step, target);
+        return value;
+    }
+}
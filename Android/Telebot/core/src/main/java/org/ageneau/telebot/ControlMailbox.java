@@ -0,0 +1,69 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Single-slot lock-free mailbox for motor controls
+ * Producers overwrite the slot, so the consumer always gets the latest value
+ * The consumer polls the slot and parks in between, it is unparked on publish
+ */
+class ControlMailbox {
+
+    static final long EMPTY = Long.MIN_VALUE;
+
+    private final AtomicLong mSlot = new AtomicLong(EMPTY);
+    private volatile Thread mConsumer;
+
+    /**
+     * Publish controls, replacing any value not consumed yet
+     */
+    void publish(int left, int right) {
+        mSlot.set(pack(left, right));
+        LockSupport.unpark(mConsumer);
+    }
+
+    /**
+     * Set the thread unparked on publish
+     */
+    void setConsumer(Thread consumer) {
+        mConsumer = consumer;
+    }
+
+    /**
+     * Consume the value if any without waiting, return EMPTY otherwise
+     */
+    long poll() {
+        return mSlot.getAndSet(EMPTY);
+    }
+
+    static long pack(int left, int right) {
+        return ((long) left << 32) | (right & 0xFFFFFFFFL);
+    }
+
+    static int left(long value) {
+        return (int) (value >> 32);
+    }
+
+    static int right(long value) {
+        return (int) value;
+    }
+}
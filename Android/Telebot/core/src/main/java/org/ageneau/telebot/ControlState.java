@@ -0,0 +1,109 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import java.nio.charset.Charset;
+
+/**
+ * Immutable versioned snapshot of the controls, with its responses encoded once
+ * The entity tag is the version prefixed by an instance tag, so it changes across restarts
+ */
+class ControlState {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final byte[] JSON_LEFT = "{\"left\":".getBytes(ASCII);
+    private static final byte[] JSON_RIGHT = ",\"right\":".getBytes(ASCII);
+
+    private final String mInstance;
+    private final long mVersion;
+    private final int mLeft, mRight;
+    private final String mETag;
+    private final HttpResponse mResponse;
+    private final HttpResponse mNotModified;
+
+    /**
+     * Create the initial state for an instance
+     */
+    ControlState(String instance) {
+        this(instance, 0, 0, 0);
+    }
+
+    private ControlState(String instance, long version, int left, int right) {
+        mInstance = instance;
+        mVersion = version;
+        mLeft = left;
+        mRight = right;
+        mETag = "\"" + instance + "." + version + "\"";
+
+        // Body like {"left":0,"right":0}
+        OutputBuffer body = new OutputBuffer(32);
+        body.write(JSON_LEFT, 0, JSON_LEFT.length);
+        body.writeDecimal(left);
+        body.write(JSON_RIGHT, 0, JSON_RIGHT.length);
+        body.writeDecimal(right);
+        body.write('}');
+
+        byte[] etagLine = HttpResponse.header("ETag", mETag);
+        mResponse = new HttpResponse("200 OK")
+                .addHeader(etagLine)
+                .setBody(HttpResponse.CONTENT_TYPE_JSON, body.getBuffer(), body.getLength());
+        mNotModified = new HttpResponse("304 Not Modified").addHeader(etagLine);
+    }
+
+    /**
+     * Return the next state with the specified controls, or this one if they are unchanged
+     */
+    ControlState with(int left, int right) {
+        if(left == mLeft && right == mRight) return this;
+        return new ControlState(mInstance, mVersion + 1, left, right);
+    }
+
+    long getVersion() {
+        return mVersion;
+    }
+
+    int getLeft() {
+        return mLeft;
+    }
+
+    int getRight() {
+        return mRight;
+    }
+
+    /**
+     * Get the entity tag, quoted
+     */
+    String getETag() {
+        return mETag;
+    }
+
+    /**
+     * Get the shared response with the controls as JSON, must not be modified
+     */
+    HttpResponse getResponse() {
+        return mResponse;
+    }
+
+    /**
+     * Get the shared 304 response, must not be modified
+     */
+    HttpResponse getNotModified() {
+        return mNotModified;
+    }
+}
@@ -0,0 +1,71 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Immutable snapshot of the device status, replaced as a whole when updated
+ */
+public class DeviceStatus {
+
+    static final DeviceStatus UNKNOWN = new DeviceStatus(-1, 0);
+
+    private final int mBattery;         // percent, -1 if unknown
+    private final long mBatteryTime;    // ms since epoch, 0 if unknown
+
+    DeviceStatus(int battery, long batteryTime) {
+        mBattery = battery;
+        mBatteryTime = batteryTime;
+    }
+
+    /**
+     * Get the battery level in percent, or -1 if unknown
+     */
+    public int getBattery() {
+        return mBattery;
+    }
+
+    /**
+     * Get the time the battery level was received, in ms since epoch
+     */
+    public long getBatteryTime() {
+        return mBatteryTime;
+    }
+
+    /**
+     * Return a copy with a new battery level received now
+     */
+    DeviceStatus withBattery(int battery) {
+        return new DeviceStatus(battery, System.currentTimeMillis());
+    }
+
+    /**
+     * Get the snapshot as JSON, unknown values are omitted
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject object = new JSONObject();
+        if(mBattery >= 0) {
+            object.put("battery", mBattery);
+            object.put("batteryTime", mBatteryTime);
+        }
+        return object;
+    }
+}
@@ -0,0 +1,132 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Decoder for data received from the device, both text lines and binary frames
+ * Data is read in bulk into a reusable buffer and decoded in place without allocation
+ */
+class FrameDecoder {
+
+    /**
+     * Receiver of decoded commands
+     */
+    interface Listener {
+        void onCommand(char command, int value);
+    }
+
+    private final byte[] mBuffer;
+    private final Listener mListener;
+    private int mLength;
+    private boolean mDiscarding;    // Skipping the rest of a line too long for the buffer
+
+    FrameDecoder(int capacity, Listener listener) {
+        mBuffer = new byte[capacity];
+        mListener = listener;
+    }
+
+    /**
+     * Read available data from the stream and decode it, return -1 at end of stream
+     */
+    int readFrom(InputStream in) throws IOException {
+        int n = in.read(mBuffer, mLength, mBuffer.length - mLength);
+        if(n < 0) return -1;
+        mLength+= n;
+        decode();
+        return n;
+    }
+
+    /**
+     * Decode data already copied into the buffer
+     */
+    void feed(byte[] data, int offset, int length) {
+        while(length > 0) {
+            int n = Math.min(length, mBuffer.length - mLength);
+            System.arraycopy(data, offset, mBuffer, mLength, n);
+            mLength+= n;
+            offset+= n;
+            length-= n;
+            decode();
+        }
+    }
+
+    // Decode complete lines and frames, then move the remainder to the front
+    private void decode() {
+        int pos = 0;
+        while(pos < mLength) {
+            if(mBuffer[pos] == BinaryProtocol.START) {
+                if(pos + 1 >= mLength) break;
+                int length = BinaryProtocol.frameLength(mBuffer[pos + 1]);
+                if(length < 0) {
+                    ++pos;  // Unknown opcode, resynchronize
+                    continue;
+                }
+                if(pos + length > mLength) break;
+
+                // Frames without payload carry the sequence number as value
+                if(BinaryProtocol.isValid(mBuffer, pos, length))
+                    mListener.onCommand((char) mBuffer[pos + 1], mBuffer[pos + (length > 4 ? 2 : length - 2)] & 0xFF);
+                pos+= length;
+            }
+            else {
+                int end = pos;
+                while(end < mLength && mBuffer[end] != '\n') ++end;
+                if(end == mLength) break;
+
+                if(!mDiscarding) decodeLine(pos, end);
+                mDiscarding = false;
+                pos = end + 1;
+            }
+        }
+
+        if(pos == 0 && mLength == mBuffer.length) {
+            mLength = 0;    // Line too long, drop it
+            mDiscarding = true;
+            return;
+        }
+
+        System.arraycopy(mBuffer, pos, mBuffer, 0, mLength - pos);
+        mLength-= pos;
+    }
+
+    // Decode a text line like "B 42"
+    private void decodeLine(int start, int end) {
+        if(end > start && mBuffer[end - 1] == '\r') --end;
+        if(end == start) return;
+
+        char command = (char) mBuffer[start];
+        int pos = start + 1;
+        while(pos < end && mBuffer[pos] == ' ') ++pos;
+
+        boolean negative = false;
+        if(pos < end && (mBuffer[pos] == '-' || mBuffer[pos] == '+')) {
+            negative = (mBuffer[pos] == '-');
+            ++pos;
+        }
+
+        int value = 0;
+        while(pos < end && mBuffer[pos] >= '0' && mBuffer[pos] <= '9')
+            value = value * 10 + (mBuffer[pos++] - '0');
+
+        mListener.onCommand(command, negative ? -value : value);
+    }
+}
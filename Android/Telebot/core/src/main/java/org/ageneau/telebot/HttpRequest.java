@@ -0,0 +1,187 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+import java.nio.charset.Charset;
+
+/**
+ * Parsed HTTP request, reused across requests on the same connection
+ * The head and body are kept as raw bytes, strings are only built on demand
+ */
+class HttpRequest {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    static final int MAX_HEADERS = 32;
+
+    byte[] mData = new byte[1024];      // Head followed by body
+    int mBodyOffset;
+    int mBodyLength;
+
+    String mMethod;
+    String mRoute;
+    int mQueryStart;
+    int mQueryEnd;
+    boolean mKeepAlive;
+
+    long mReceiveTime;                  // System.nanoTime() when the request started to arrive
+    long mParseTime;                    // System.nanoTime() when the request was parsed
+
+    int mHeaderCount;
+    final int[] mHeaders = new int[MAX_HEADERS * 4];   // name start, name end, value start, value end
+
+    private boolean mContentParsed;
+    private JSONObject mContent;
+
+    /**
+     * Get the method in upper case, like "POST"
+     */
+    String getMethod() {
+        return mMethod;
+    }
+
+    /**
+     * Get the request path without the query string, like "/control"
+     */
+    String getRoute() {
+        return mRoute;
+    }
+
+    /**
+     * Get a query string parameter, or null if it is absent
+     * The value is returned as is, without percent-decoding
+     */
+    String getParameter(String name) {
+        int pos = mQueryStart;
+        while(pos < mQueryEnd) {
+            int end = pos;
+            while(end < mQueryEnd && mData[end] != '&') ++end;
+            int sep = pos;
+            while(sep < end && mData[sep] != '=') ++sep;
+            if(regionEquals(pos, sep, name))
+                return new String(mData, Math.min(sep + 1, end), end - Math.min(sep + 1, end), ASCII);
+            pos = end + 1;
+        }
+        return null;
+    }
+
+    /**
+     * Return true if the client asked for a persistent connection
+     */
+    boolean isKeepAlive() {
+        return mKeepAlive;
+    }
+
+    /**
+     * Get a header value, or null if it is absent
+     * Name comparison is case-insensitive
+     */
+    String getHeader(String name) {
+        int i = findHeader(name);
+        if(i < 0) return null;
+        return new String(mData, mHeaders[i + 2], mHeaders[i + 3] - mHeaders[i + 2], ASCII);
+    }
+
+    /**
+     * Return true if the header is present
+     */
+    boolean hasHeader(String name) {
+        return findHeader(name) >= 0;
+    }
+
+    /**
+     * Return true if the header value equals the specified one, ignoring case
+     */
+    boolean headerEquals(String name, String value) {
+        int i = findHeader(name);
+        return i >= 0 && regionEquals(mHeaders[i + 2], mHeaders[i + 3], value);
+    }
+
+    /**
+     * Get the raw body buffer, the body starts at getBodyOffset()
+     */
+    byte[] getBodyBuffer() {
+        return mData;
+    }
+
+    int getBodyOffset() {
+        return mBodyOffset;
+    }
+
+    int getBodyLength() {
+        return mBodyLength;
+    }
+
+    /**
+     * Get the body as a string, or null if empty
+     */
+    String getBody() {
+        return (mBodyLength > 0 ? new String(mData, mBodyOffset, mBodyLength, UTF8) : null);
+    }
+
+    /**
+     * Get the body parsed as a JSON object, or null if empty or invalid
+     */
+    JSONObject getContent() {
+        if(!mContentParsed) {
+            mContentParsed = true;
+            String body = getBody();
+            if(body != null) {
+                try {
+                    mContent = new JSONObject(body);
+                } catch(JSONException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+        return mContent;
+    }
+
+    // Called by the parser before filling the request
+    void reset() {
+        mHeaderCount = 0;
+        mContentParsed = false;
+        mContent = null;
+    }
+
+    private int findHeader(String name) {
+        for(int i = 0; i < mHeaderCount * 4; i+= 4) {
+            if(regionEquals(mHeaders[i], mHeaders[i + 1], name))
+                return i;
+        }
+        return -1;
+    }
+
+    private boolean regionEquals(int start, int end, String s) {
+        if(end - start != s.length()) return false;
+        for(int i = 0; i < s.length(); ++i) {
+            if(toLower(mData[start + i]) != toLower((byte) s.charAt(i)))
+                return false;
+        }
+        return true;
+    }
+
+    private static int toLower(byte b) {
+        return (b >= 'A' && b <= 'Z' ? b + ('a' - 'A') : b);
+    }
+}
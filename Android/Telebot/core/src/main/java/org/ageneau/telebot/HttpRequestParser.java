@@ -0,0 +1,253 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import java.nio.charset.Charset;
+
+/**
+ * Streaming HTTP request parser working on raw bytes
+ * The caller accumulates data in a buffer and calls parse() until a request is complete
+ */
+class HttpRequestParser {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    static final int MAX_HEAD_SIZE = 8192;
+    static final int MAX_BODY_SIZE = 65536;
+
+    // Results of parse(), positive values are the length of the complete request
+    static final int INCOMPLETE = 0;
+    static final int BAD_REQUEST = -1;
+    static final int HEADERS_TOO_LARGE = -2;
+    static final int BODY_TOO_LARGE = -3;
+
+    private static final String[] METHODS = { "GET", "POST", "OPTIONS", "HEAD", "PUT", "DELETE" };
+
+    private int mScanned;           // Bytes already scanned for the end of the head
+    private int mHeadLength;        // Length of the head once found, 0 otherwise
+    private int mRequiredLength;    // Length of the whole request once known
+
+    // Cache of the last route, requests on a connection usually target the same one
+    private byte[] mLastRouteBytes = new byte[0];
+    private String mLastRoute;
+
+    /**
+     * Parse the request at the beginning of the data and fill the request object
+     * Return the length of the request if complete, INCOMPLETE, or a negative error
+     */
+    int parse(byte[] buffer, int offset, int length, HttpRequest request) {
+        if(mHeadLength == 0) {
+            int headEnd = findHeadEnd(buffer, offset + Math.max(mScanned - 2, 0), offset + length);
+            if(headEnd < 0) {
+                mScanned = length;
+                return (length > MAX_HEAD_SIZE ? fail(HEADERS_TOO_LARGE) : INCOMPLETE);
+            }
+
+            mHeadLength = headEnd - offset;
+            if(mHeadLength > MAX_HEAD_SIZE)
+                return fail(HEADERS_TOO_LARGE);
+
+            // Copy the head so the request stays valid after the buffer is reused
+            request.reset();
+            ensureCapacity(request, mHeadLength);
+            System.arraycopy(buffer, offset, request.mData, 0, mHeadLength);
+
+            int result = parseHead(request);
+            if(result < 0) return fail(result);
+        }
+
+        if(length < mRequiredLength)
+            return INCOMPLETE;
+
+        // Copy the body after the head
+        int bodyLength = mRequiredLength - mHeadLength;
+        ensureCapacity(request, mRequiredLength);
+        System.arraycopy(buffer, offset + mHeadLength, request.mData, mHeadLength, bodyLength);
+        request.mBodyOffset = mHeadLength;
+        request.mBodyLength = bodyLength;
+
+        int total = mRequiredLength;
+        reset();
+        return total;
+    }
+
+    /**
+     * Forget the request being parsed, when the connection ends before it is complete
+     * The parser can then be reused on another connection
+     */
+    void reset() {
+        mScanned = 0;
+        mHeadLength = 0;
+        mRequiredLength = 0;
+    }
+
+    /**
+     * Get the buffer length needed to hold the whole request being parsed, 0 if unknown yet
+     */
+    int getRequiredLength() {
+        return mRequiredLength;
+    }
+
+    // Parse request line and headers from the copied head
+    private int parseHead(HttpRequest request) {
+        byte[] data = request.mData;
+        int end = mHeadLength;
+
+        // Request line
+        int lineEnd = indexOf(data, 0, end, (byte) '\n');
+        int methodEnd = indexOf(data, 0, lineEnd, (byte) ' ');
+        if(methodEnd <= 0) return BAD_REQUEST;
+        int routeStart = methodEnd + 1;
+        int routeEnd = indexOf(data, routeStart, lineEnd, (byte) ' ');
+        if(routeEnd <= routeStart) return BAD_REQUEST;
+
+        // The query string is kept apart from the route
+        int queryStart = indexOf(data, routeStart, routeEnd, (byte) '?');
+        request.mMethod = method(data, 0, methodEnd);
+        request.mRoute = route(data, routeStart, queryStart);
+        request.mQueryStart = Math.min(queryStart + 1, routeEnd);
+        request.mQueryEnd = routeEnd;
+        boolean http11 = regionMatches(data, routeEnd + 1, trimEnd(data, routeEnd + 1, lineEnd), "HTTP/1.1");
+
+        // Headers
+        int pos = lineEnd + 1;
+        while(pos < end) {
+            int eol = indexOf(data, pos, end, (byte) '\n');
+            int lineStop = trimEnd(data, pos, eol);
+            if(lineStop == pos) break;  // Empty line
+
+            int colon = indexOf(data, pos, lineStop, (byte) ':');
+            if(colon == lineStop) return BAD_REQUEST;
+            if(request.mHeaderCount == HttpRequest.MAX_HEADERS) return HEADERS_TOO_LARGE;
+
+            int valueStart = colon + 1;
+            while(valueStart < lineStop && data[valueStart] == ' ') ++valueStart;
+
+            int i = request.mHeaderCount * 4;
+            request.mHeaders[i] = pos;
+            request.mHeaders[i + 1] = trimEnd(data, pos, colon);
+            request.mHeaders[i + 2] = valueStart;
+            request.mHeaders[i + 3] = lineStop;
+            ++request.mHeaderCount;
+
+            pos = eol + 1;
+        }
+
+        int contentLength = parseLength(data, request, "Content-Length");
+        if(contentLength < 0) return BAD_REQUEST;
+        if(contentLength > MAX_BODY_SIZE) return BODY_TOO_LARGE;
+
+        if(request.headerEquals("Connection", "close")) request.mKeepAlive = false;
+        else if(request.headerEquals("Connection", "keep-alive")) request.mKeepAlive = true;
+        else request.mKeepAlive = http11;
+
+        mRequiredLength = mHeadLength + contentLength;
+        return 0;
+    }
+
+    // Reset state after an error, the connection should be closed
+    private int fail(int error) {
+        reset();
+        return error;
+    }
+
+    // Find the end of the head, tolerating bare line feeds
+    private static int findHeadEnd(byte[] buffer, int start, int end) {
+        for(int i = start; i < end; ++i) {
+            if(buffer[i] != '\n') continue;
+            if(i + 1 < end && buffer[i + 1] == '\n') return i + 2;
+            if(i + 2 < end && buffer[i + 1] == '\r' && buffer[i + 2] == '\n') return i + 3;
+        }
+        return -1;
+    }
+
+    private static int indexOf(byte[] data, int start, int end, byte b) {
+        for(int i = start; i < end; ++i)
+            if(data[i] == b) return i;
+        return end;
+    }
+
+    private static int trimEnd(byte[] data, int start, int end) {
+        while(end > start && (data[end - 1] == '\r' || data[end - 1] == ' ')) --end;
+        return end;
+    }
+
+    private static boolean regionMatches(byte[] data, int start, int end, String s) {
+        if(end - start != s.length()) return false;
+        for(int i = 0; i < s.length(); ++i)
+            if(data[start + i] != s.charAt(i)) return false;
+        return true;
+    }
+
+    // Return a constant for known methods to avoid allocation
+    private static String method(byte[] data, int start, int end) {
+        for(String method : METHODS) {
+            if(regionMatches(data, start, end, method))
+                return method;
+        }
+        return new String(data, start, end - start, ASCII).toUpperCase();
+    }
+
+    // Reuse the last route string if identical
+    private String route(byte[] data, int start, int end) {
+        int length = end - start;
+        boolean same = (length == mLastRouteBytes.length);
+        for(int i = 0; same && i < length; ++i)
+            same = (data[start + i] == mLastRouteBytes[i]);
+
+        if(!same) {
+            mLastRouteBytes = new byte[length];
+            System.arraycopy(data, start, mLastRouteBytes, 0, length);
+            mLastRoute = new String(mLastRouteBytes, ASCII);
+        }
+        return mLastRoute;
+    }
+
+    // Parse a decimal header value without allocation, 0 if absent and -1 if invalid
+    private static int parseLength(byte[] data, HttpRequest request, String name) {
+        for(int i = 0; i < request.mHeaderCount * 4; i+= 4) {
+            int nameStart = request.mHeaders[i];
+            int nameEnd = request.mHeaders[i + 1];
+            if(nameEnd - nameStart != name.length()) continue;
+            boolean match = true;
+            for(int j = 0; match && j < name.length(); ++j)
+                match = (Character.toLowerCase((char) data[nameStart + j]) == Character.toLowerCase(name.charAt(j)));
+            if(!match) continue;
+
+            int start = request.mHeaders[i + 2];
+            int end = request.mHeaders[i + 3];
+            if(start == end || end - start > 9) return -1;
+            int value = 0;
+            for(int j = start; j < end; ++j) {
+                if(data[j] < '0' || data[j] > '9') return -1;
+                value = value * 10 + (data[j] - '0');
+            }
+            return value;
+        }
+        return 0;
+    }
+
+    private static void ensureCapacity(HttpRequest request, int capacity) {
+        if(request.mData.length < capacity) {
+            byte[] data = new byte[Math.max(capacity, request.mData.length * 2)];
+            System.arraycopy(request.mData, 0, data, 0, request.mData.length);
+            request.mData = data;
+        }
+    }
+}
@@ -0,0 +1,254 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import org.json.JSONObject;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * HTTP response with its status line, headers and body
+ * Status lines and constant headers are encoded once and reused
+ */
+class HttpResponse {
+
+    /**
+     * Handler taking over the connection once the response headers are sent
+     */
+    interface StreamHandler {
+        void handle(InputStream in, OutputStream out) throws IOException;
+    }
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private static final byte[] CRLF = { '\r', '\n' };
+    private static final byte[] CONTENT_LENGTH = "Content-Length: ".getBytes(ASCII);
+    static final byte[] CONTENT_TYPE_JSON = header("Content-Type", "application/json");
+    private static final byte[] CONTENT_TYPE_EVENT_STREAM = header("Content-Type", "text/event-stream");
+    private static final byte[] NO_CACHE = header("Cache-Control", "no-cache");
+
+    // Encoded status line, connection and CORS headers, by status
+    private static final ConcurrentHashMap<String, byte[]> sKeepAlivePrefixes = new ConcurrentHashMap<>();
+    private static final ConcurrentHashMap<String, byte[]> sClosePrefixes = new ConcurrentHashMap<>();
+
+    // Constant responses, must not be modified
+    static final HttpResponse BAD_REQUEST = new HttpResponse("400 Bad Request");
+    static final HttpResponse NOT_FOUND = new HttpResponse("404 Not Found");
+    static final HttpResponse PAYLOAD_TOO_LARGE = new HttpResponse("413 Payload Too Large");
+    static final HttpResponse HEADERS_TOO_LARGE = new HttpResponse("431 Request Header Fields Too Large");
+    static final HttpResponse INTERNAL_ERROR = new HttpResponse("500 Internal Server Error");
+    static final HttpResponse UNAVAILABLE = new HttpResponse("503 Service Unavailable")
+            .addHeader("Retry-After", "1");
+    static final HttpResponse PREFLIGHT = new HttpResponse("200 OK")
+            .addHeader("Access-Control-Allow-Methods", "POST, GET")
+            .addHeader("Access-Control-Allow-Headers", "Content-Type");
+    static final HttpResponse ALLOW = new HttpResponse("200 OK")
+            .addHeader("Allow", "POST, GET");
+
+    private final String mStatus;
+    private List<byte[]> mHeaders;
+    private byte[] mBody;
+    private int mBodyLength;
+    private String mConnection;
+    private StreamHandler mStreamHandler;
+    private AtomicInteger mSlots;   // Stream slot counter to release when the stream ends
+
+    /**
+     * Create an empty response with specified status, like "200 OK"
+     */
+    HttpResponse(String status) {
+        mStatus = status;
+    }
+
+    /**
+     * Create a JSON response
+     */
+    static HttpResponse json(JSONObject object) {
+        byte[] body = object.toString().getBytes(UTF8);
+        return new HttpResponse("200 OK").setBody(CONTENT_TYPE_JSON, body, body.length);
+    }
+
+    /**
+     * Create a Server-Sent Events response, the handler then writes events until the client leaves
+     */
+    static HttpResponse eventStream(StreamHandler handler) {
+        return new HttpResponse("200 OK")
+                .addHeader(CONTENT_TYPE_EVENT_STREAM)
+                .addHeader(NO_CACHE)
+                .setStreamHandler("keep-alive", handler);
+    }
+
+    /**
+     * Create a response written later as a whole by the handler, the connection is then closed
+     */
+    static HttpResponse deferred(StreamHandler handler) {
+        return new HttpResponse(null).setStreamHandler(null, handler);
+    }
+
+    /**
+     * Encode a header line once, to be added with addHeader(byte[])
+     */
+    static byte[] header(String name, String value) {
+        return (name + ": " + value + "\r\n").getBytes(ASCII);
+    }
+
+    /**
+     * Add a header
+     */
+    HttpResponse addHeader(String name, String value) {
+        return addHeader(header(name, value));
+    }
+
+    /**
+     * Add a header line encoded with header()
+     */
+    HttpResponse addHeader(byte[] line) {
+        if(mHeaders == null) mHeaders = new ArrayList<>(4);
+        mHeaders.add(line);
+        return this;
+    }
+
+    /**
+     * Set the body with its content type
+     */
+    HttpResponse setBody(String contentType, byte[] body) {
+        return setBody(header("Content-Type", contentType), body, body.length);
+    }
+
+    /**
+     * Set the body with an encoded content type header
+     */
+    HttpResponse setBody(byte[] contentTypeLine, byte[] body, int length) {
+        addHeader(contentTypeLine);
+        mBody = body;
+        mBodyLength = length;
+        return this;
+    }
+
+    /**
+     * Hand the connection over to a stream handler after the headers,
+     * the Connection header is then forced to the specified value
+     */
+    HttpResponse setStreamHandler(String connection, StreamHandler handler) {
+        mConnection = connection;
+        mStreamHandler = handler;
+        return this;
+    }
+
+    /**
+     * Reserve a stream slot for this response, return false if all max slots are taken
+     * The slot is held until release(), called when the stream ends or fails to start
+     */
+    boolean reserve(AtomicInteger slots, int max) {
+        if(slots.incrementAndGet() > max) {
+            slots.decrementAndGet();
+            return false;
+        }
+        mSlots = slots;
+        return true;
+    }
+
+    /**
+     * Release the stream slot if any, only once
+     */
+    synchronized void release() {
+        if(mSlots != null) {
+            mSlots.decrementAndGet();
+            mSlots = null;
+        }
+    }
+
+    /**
+     * Get the stream handler, or null for a regular response
+     */
+    StreamHandler getStreamHandler() {
+        return mStreamHandler;
+    }
+
+    /**
+     * Get the status line without the protocol, like "200 OK"
+     */
+    String getStatus() {
+        return mStatus;
+    }
+
+    /**
+     * Serialize the response into the buffer, the connection header depends on keepAlive
+     */
+    void writeTo(OutputBuffer out, boolean keepAlive) {
+        if(mStatus == null) return;     // Deferred
+
+        byte[] prefix;
+        if(mConnection != null) prefix = prefix(mStatus, mConnection);
+        else prefix = prefix(mStatus, keepAlive);
+        out.write(prefix, 0, prefix.length);
+
+        if(mHeaders != null) {
+            for(int i = 0; i < mHeaders.size(); ++i) {
+                byte[] line = mHeaders.get(i);
+                out.write(line, 0, line.length);
+            }
+        }
+
+        if(mStreamHandler == null) {
+            out.write(CONTENT_LENGTH, 0, CONTENT_LENGTH.length);
+            out.writeDecimal(mBodyLength);
+            out.write(CRLF, 0, CRLF.length);
+        }
+        out.write(CRLF, 0, CRLF.length);
+
+        if(mBodyLength > 0)
+            out.write(mBody, 0, mBodyLength);
+    }
+
+    /**
+     * Serialize the response
+     */
+    byte[] encode(boolean keepAlive) {
+        OutputBuffer out = new OutputBuffer(256);
+        writeTo(out, keepAlive);
+        byte[] b = new byte[out.getLength()];
+        System.arraycopy(out.getBuffer(), 0, b, 0, b.length);
+        return b;
+    }
+
+    private static byte[] prefix(String status, boolean keepAlive) {
+        ConcurrentHashMap<String, byte[]> cache = (keepAlive ? sKeepAlivePrefixes : sClosePrefixes);
+        byte[] prefix = cache.get(status);
+        if(prefix == null) {
+            prefix = prefix(status, keepAlive ? "keep-alive" : "close");
+            cache.put(status, prefix);
+        }
+        return prefix;
+    }
+
+    private static byte[] prefix(String status, String connection) {
+        return ("HTTP/1.1 " + status + "\r\n"
+                + "Connection: " + connection + "\r\n"
+                + "Access-Control-Allow-Origin: *\r\n").getBytes(ASCII);    // CORS
+    }
+}
@@ -0,0 +1,638 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import org.json.JSONObject;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Tiny HTTP server implementation for JSON requests
+ * HTTP access control (CORS) is supported
+ */
+public class HttpServer implements Runnable {
+
+    private static final String TAG = "HttpServer";
+
+    /**
+     * Strategy used to run connection handlers
+     */
+    public enum ExecutorMode {
+        INLINE,     // Handle connections on the accept thread
+        POOL,       // Bounded pool of worker threads
+        VIRTUAL     // Virtual thread per connection if supported, pool otherwise
+    }
+
+    /**
+     * Connection handling engine
+     */
+    public enum Engine {
+        BLOCKING,   // One blocking socket per request, closed after the response
+        NIO         // Selector with persistent connections and pipelining
+    }
+
+    private static final int DEFAULT_WORKERS = 4;
+    private static final int DEFAULT_QUEUE_SIZE = 16;
+    private static final int DEFAULT_BACKLOG = 16;
+    private static final int READ_TIMEOUT = 5000;   // ms
+    private static final int MAX_STREAMS = 4;       // Concurrent WebSocket and event streams
+    private static final int MAX_DEFERRED = 16;     // Concurrent long-polls, apart so they can not starve streams
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final int mPort;
+    private ServerSocket mServerSocket;
+
+    private Engine mEngine = Engine.BLOCKING;
+    private ExecutorMode mExecutorMode = ExecutorMode.POOL;
+    private int mWorkers = DEFAULT_WORKERS;
+    private int mQueueSize = DEFAULT_QUEUE_SIZE;
+    private int mBacklog = DEFAULT_BACKLOG;
+
+    private ExecutorService mExecutor;
+    private Semaphore mPermits;         // Admission control when the executor is unbounded
+    private NioHttpEngine mNioEngine;
+    private final AtomicInteger mStreams = new AtomicInteger();
+    private final AtomicInteger mDeferred = new AtomicInteger();
+    private final Metrics mMetrics = new Metrics();
+
+    // Per-thread parsing state of the blocking engine
+    private final ThreadLocal<Worker> mThreadBuffers = new ThreadLocal<Worker>() {
+        @Override
+        protected Worker initialValue() {
+            return new Worker();
+        }
+    };
+
+    /**
+     * Create server for specified port
+     */
+    public HttpServer(int port) {
+        mPort = port;
+    }
+
+    /**
+     * Set the connection engine, must be called before start
+     */
+    public void setEngine(Engine engine) {
+        mEngine = engine;
+    }
+
+    /**
+     * Set the executor mode, must be called before start
+     */
+    public void setExecutorMode(ExecutorMode mode) {
+        mExecutorMode = mode;
+    }
+
+    /**
+     * Set the number of workers and the number of pending connections allowed before shedding load
+     */
+    public void setWorkers(int workers, int queueSize) {
+        if(workers < 1 || queueSize < 0)
+            throw new IllegalArgumentException("Invalid worker configuration");
+        mWorkers = workers;
+        mQueueSize = queueSize;
+    }
+
+    /**
+     * Set the maximum accept backlog of the server socket
+     */
+    public void setBacklog(int backlog) {
+        mBacklog = backlog;
+    }
+
+    /**
+     * Get latency histograms and counters, may be shared with other components
+     */
+    public Metrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Start the server
+     */
+    public void start() {
+        Thread t = new Thread(this);
+        t.start();
+    }
+
+    /**
+     * Stop the server
+     */
+    public void stop() {
+        try {
+            if(mServerSocket != null) {
+                mServerSocket.close();
+                mServerSocket = null;
+            }
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+
+        if(mNioEngine != null) {
+            mNioEngine.stop();
+            mNioEngine = null;
+        }
+
+        if(mExecutor != null) {
+            mExecutor.shutdownNow();
+            mExecutor = null;
+        }
+    }
+
+    /**
+     * Server main loop
+     */
+    @Override
+    public void run() {
+        mExecutor = createExecutor();
+
+        if(mEngine == Engine.NIO) {
+            try {
+                mNioEngine = new NioHttpEngine(this, mPort, mBacklog);
+                mNioEngine.run();
+            } catch(IOException e) {
+                e.printStackTrace();
+            }
+            return;
+        }
+
+        try {
+            // Open the server socket
+            mServerSocket = new ServerSocket(mPort, mBacklog);
+
+            // Loop on accepted connections
+            while(true) {
+                Socket socket = mServerSocket.accept();
+                dispatch(socket);
+            }
+        } catch(SocketException e) {
+            // Stopped
+        } catch(IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    /**
+     * Create the executor for the configured mode, null means inline
+     */
+    private ExecutorService createExecutor() {
+        switch(mExecutorMode) {
+            case INLINE:
+                return null;
+
+            case VIRTUAL:
+                try {
+                    // Virtual threads are only available on recent Java runtimes
+                    ExecutorService executor = (ExecutorService) Executors.class
+                            .getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+                    mPermits = new Semaphore(mWorkers + mQueueSize);
+                    return executor;
+                } catch(Exception e) {
+                    Log.d(TAG, "Virtual threads not supported, falling back to pool");
+                    return createPool();
+                }
+
+            default:
+                return createPool();
+        }
+    }
+
+    /**
+     * Create the bounded worker pool, saturation is handled by its rejection policy
+     */
+    private ExecutorService createPool() {
+        mPermits = null;
+        return new ThreadPoolExecutor(mWorkers, mWorkers,
+                60L, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(Math.max(mQueueSize, 1)),
+                new ThreadPoolExecutor.AbortPolicy());
+    }
+
+    /**
+     * Run a task on the executor, return false if the server is saturated
+     */
+    boolean submit(final Runnable task) {
+        if(mExecutor == null) {
+            task.run();
+            return true;
+        }
+
+        if(mPermits != null && !mPermits.tryAcquire())
+            return false;
+
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        task.run();
+                    } finally {
+                        if(mPermits != null) mPermits.release();
+                    }
+                }
+            });
+            return true;
+        } catch(RejectedExecutionException e) {
+            if(mPermits != null) mPermits.release();
+            return false;
+        }
+    }
+
+    /**
+     * Return true if requests are processed on the calling thread
+     */
+    boolean isInline() {
+        return mExecutor == null;
+    }
+
+    /**
+     * Hand an accepted connection to the executor, or reject it if saturated
+     */
+    private void dispatch(final Socket socket) {
+        final long acceptTime = System.nanoTime();
+        try {
+            socket.setSoTimeout(READ_TIMEOUT);
+        } catch(SocketException e) {
+            e.printStackTrace();
+        }
+
+        boolean accepted = submit(new Runnable() {
+            @Override
+            public void run() {
+                handle(socket, acceptTime);
+            }
+        });
+
+        if(!accepted)
+            reject(socket);
+    }
+
+    /**
+     * Shed load by answering 503 immediately without reading the request
+     */
+    private void reject(Socket socket) {
+        Log.w(TAG, "Server saturated, rejecting connection");
+        mMetrics.mDroppedRequests.incrementAndGet();
+        try {
+            OutputStream output = socket.getOutputStream();
+            output.write(HttpResponse.UNAVAILABLE.encode(false));
+            output.flush();
+        } catch(IOException e) {
+            e.printStackTrace();
+        } finally {
+            try {
+                socket.close();
+            } catch(IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Run the stream handler of the response on its own thread, the socket is closed when it returns
+     * The stream slot reserved by the response is released at the same time
+     */
+    void startStream(final Socket socket, final InputStream in, final OutputStream out,
+                     final HttpResponse response) {
+        final HttpResponse.StreamHandler handler = response.getStreamHandler();
+        Thread t = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    socket.setSoTimeout(0);
+                    handler.handle(in, out);
+                } catch(IOException e) {
+                    Log.d(TAG, "Stream closed: " + e.getMessage());
+                } finally {
+                    response.release();
+                    try {
+                        socket.close();
+                    } catch(IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+        t.setDaemon(true);
+        t.start();
+    }
+
+    /**
+     * Receive an HTTP request on a socket and send the response
+     */
+    private void handle(Socket socket, long accepted) {
+        boolean detached = false;
+        try {
+            OutputStream output = socket.getOutputStream();
+            HttpResponse response = handle(socket.getInputStream(), output, accepted);
+
+            // Hand the connection over if the response is a stream,
+            // bytes read after the request, like a first WebSocket frame, belong to it
+            if(response != null && response.getStreamHandler() != null) {
+                InputStream in = socket.getInputStream();
+                Worker worker = mThreadBuffers.get();
+                if(worker.mRemainderLength > 0) {
+                    byte[] remainder = Arrays.copyOfRange(worker.mBuffer, worker.mRemainderOffset,
+                            worker.mRemainderOffset + worker.mRemainderLength);
+                    in = new SequenceInputStream(new ByteArrayInputStream(remainder), in);
+                }
+                startStream(socket, in, output, response);
+                detached = true;
+            }
+            
+        } catch(IOException e) {
+            e.printStackTrace();
+        } 
+        finally {
+            if(!detached) {
+                try {
+                    socket.close();
+                } catch(IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    /**
+     * Receive an HTTP request on a stream and send the response, return the response sent
+     */
+    HttpResponse handle(InputStream input, OutputStream output) throws IOException {
+        return handle(input, output, System.nanoTime());
+    }
+
+    /**
+     * Receive an HTTP request on a stream accepted at the specified System.nanoTime()
+     */
+    HttpResponse handle(InputStream input, OutputStream output, long accepted) throws IOException {
+        Worker worker = mThreadBuffers.get();
+        HttpRequestParser parser = worker.mParser;
+        HttpRequest request = worker.mRequest;
+
+        // Read until the request is complete, the body may span several reads
+        // The parser is shared by the connections of the thread, so a request left
+        // incomplete by a disconnection or a timeout must not leak into the next one
+        byte[] buffer = worker.mBuffer;
+        int length = 0;
+        int result = HttpRequestParser.INCOMPLETE;
+        parser.reset();
+        try {
+            while((result = parser.parse(buffer, 0, length, request)) == HttpRequestParser.INCOMPLETE) {
+                int required = Math.max(parser.getRequiredLength(), length + 1);
+                if(required > buffer.length) {
+                    byte[] b = new byte[Math.max(required, buffer.length * 2)];
+                    System.arraycopy(buffer, 0, b, 0, length);
+                    buffer = worker.mBuffer = b;
+                }
+
+                int n = input.read(buffer, length, buffer.length - length);
+                if(n < 0) {
+                    if(length == 0) return null;
+                    result = HttpRequestParser.BAD_REQUEST;
+                    break;
+                }
+                length+= n;
+            }
+        } finally {
+            if(result <= 0) parser.reset();
+        }
+
+        // Keep track of bytes read past the request, for a stream taking over the connection
+        worker.mRemainderOffset = Math.max(result, 0);
+        worker.mRemainderLength = (result > 0 ? length - result : 0);
+
+        HttpResponse response;
+        if(result < 0) {
+            response = error(result);
+        }
+        else {
+            request.mReceiveTime = accepted;
+            request.mParseTime = System.nanoTime();
+            response = respond(request);
+        }
+
+        // Send the response, a stream that can not start gives its slot back
+        OutputBuffer out = worker.mOutput;
+        out.reset();
+        response.writeTo(out, false);
+        try {
+            output.write(out.getBuffer(), 0, out.getLength());
+            output.flush();
+        } catch(IOException e) {
+            response.release();
+            throw e;
+        }
+        return response;
+    }
+
+    /**
+     * Get the response to a parsing error
+     */
+    static HttpResponse error(int result) {
+        switch(result) {
+            case HttpRequestParser.HEADERS_TOO_LARGE:
+                return HttpResponse.HEADERS_TOO_LARGE;
+            case HttpRequestParser.BODY_TOO_LARGE:
+                return HttpResponse.PAYLOAD_TOO_LARGE;
+            default:
+                return HttpResponse.BAD_REQUEST;
+        }
+    }
+
+    /**
+     * Build the response to a parsed request, shared by all engines
+     */
+    HttpResponse respond(HttpRequest request) {
+        String method = request.getMethod();
+        String route = request.getRoute();
+        Log.d(TAG, method + " " + route);
+        mMetrics.mAcceptToParse.record(request.mParseTime - request.mReceiveTime);
+
+        // Handle WebSocket upgrade
+        if(method.equals("GET") && request.headerEquals("Upgrade", "websocket")) {
+            if(!acceptsWebSocket(route))
+                return HttpResponse.NOT_FOUND;
+            return reserve(upgradeWebSocket(route, request.getHeader("Sec-WebSocket-Key")), mStreams, MAX_STREAMS);
+        }
+
+        // Handle CORS preflight OPTIONS request
+        if(method.equals("OPTIONS")) {
+            if(request.hasHeader("Access-Control-Request-Method"))
+                return HttpResponse.PREFLIGHT;
+            else
+                return HttpResponse.ALLOW;
+        }
+
+        // Process the request, controls set meanwhile carry its trace to the serial writer
+        long trace = Trace.start();
+        Trace.span(trace, Trace.SPAN_PARSE, request.mReceiveTime, request.mParseTime);
+        Trace.setCurrent(trace);
+        HttpResponse response;
+        try {
+            response = process(request);
+        } catch(Exception e) {
+            e.printStackTrace();
+            return HttpResponse.INTERNAL_ERROR;
+        } finally {
+            Trace.setCurrent(0);
+            mMetrics.mParseToProcess.recordSince(request.mParseTime);
+            Trace.span(trace, Trace.SPAN_PROCESS, request.mParseTime, System.nanoTime());
+        }
+
+        if(response == null)
+            return HttpResponse.NOT_FOUND;
+
+        return response;
+    }
+
+    /**
+     * Open a Server-Sent Events stream written by the handler, or answer 503 if too many streams are open
+     */
+    HttpResponse openEventStream(HttpResponse.StreamHandler handler) {
+        return reserve(HttpResponse.eventStream(handler), mStreams, MAX_STREAMS);
+    }
+
+    /**
+     * Answer later from a handler writing the whole response, or 503 if too many are waiting
+     * The handler runs on its own thread, like a stream, so waiting does not hold a worker
+     * Deferred responses have their own slots, so waiting clients do not lock out streams
+     */
+    HttpResponse openDeferred(HttpResponse.StreamHandler handler) {
+        return reserve(HttpResponse.deferred(handler), mDeferred, MAX_DEFERRED);
+    }
+
+    // Reserve a slot for the stream response, or answer 503 if all are taken
+    private HttpResponse reserve(HttpResponse response, AtomicInteger slots, int max) {
+        if(response.getStreamHandler() == null) return response;    // Rejected handshake
+        if(!response.reserve(slots, max)) {
+            mMetrics.mDroppedRequests.incrementAndGet();
+            return HttpResponse.UNAVAILABLE;
+        }
+        return response;
+    }
+
+    /**
+     * Process a parsed request, may be overridden in subclasses to work on raw bytes
+     * The default implementation parses the body as JSON and calls process(method, route, content)
+     */
+    HttpResponse process(HttpRequest request) throws Exception {
+        JSONObject result = process(request.getMethod(), request.getRoute(), request.getContent());
+        return (result != null ? HttpResponse.json(result) : null);
+    }
+
+    /**
+     * Accept a WebSocket handshake and serve messages on the route
+     */
+    private HttpResponse upgradeWebSocket(final String route, String key) {
+        if(key == null)
+            return HttpResponse.BAD_REQUEST;
+
+        HttpResponse response = new HttpResponse("101 Switching Protocols");
+        response.addHeader("Upgrade", "websocket");
+        response.addHeader("Sec-WebSocket-Accept", WebSocket.acceptKey(key));
+        response.setStreamHandler("Upgrade", new HttpResponse.StreamHandler() {
+            @Override
+            public void handle(InputStream in, OutputStream out) throws IOException {
+                Log.d(TAG, "WebSocket opened on " + route);
+                WebSocket ws = new WebSocket(in, out);
+                int opcode;
+                while((opcode = ws.receive()) >= 0) {
+                    long trace = Trace.start();
+                    long start = (trace != 0 ? System.nanoTime() : 0);
+                    Trace.setCurrent(trace);
+                    try {
+                        if(opcode == WebSocket.OPCODE_BINARY) {
+                            byte[] result = processBinary(route, ws.getPayload(), ws.getLength());
+                            if(result != null) ws.send(WebSocket.OPCODE_BINARY, result, 0, result.length);
+                        }
+                        else {
+                            JSONObject content = new JSONObject(new String(ws.getPayload(), 0, ws.getLength(), UTF8));
+                            JSONObject result = process("POST", route, content);
+                            if(result != null) {
+                                byte[] b = result.toString().getBytes(UTF8);
+                                ws.send(WebSocket.OPCODE_TEXT, b, 0, b.length);
+                            }
+                        }
+                    } catch(IOException e) {
+                        throw e;
+                    } catch(Exception e) {
+                        e.printStackTrace();
+                    } finally {
+                        Trace.setCurrent(0);
+                        Trace.span(trace, Trace.SPAN_PROCESS, start, System.nanoTime());
+                    }
+                }
+                Log.d(TAG, "WebSocket closed on " + route);
+            }
+        });
+        return response;
+    }
+
+    /**
+     * Process a request, should be overridden in subclasses
+     */
+    public JSONObject process(String method, String route, JSONObject content) throws Exception {
+        return null;
+    }
+
+    /**
+     * Return true if WebSocket connections are accepted on the route, should be overridden in subclasses
+     * Text messages are passed to process() as POST requests on the same route
+     */
+    public boolean acceptsWebSocket(String route) {
+        return false;
+    }
+
+    /**
+     * Process a binary WebSocket message, should be overridden in subclasses
+     * The payload buffer is only valid during the call
+     */
+    public byte[] processBinary(String route, byte[] payload, int length) throws Exception {
+        return null;
+    }
+
+    /**
+     * Buffers reused by a thread of the blocking engine
+     */
+    private static class Worker {
+        final HttpRequestParser mParser = new HttpRequestParser();
+        final HttpRequest mRequest = new HttpRequest();
+        final OutputBuffer mOutput = new OutputBuffer(1024);
+        byte[] mBuffer = new byte[1024];
+        int mRemainderOffset, mRemainderLength;     // Bytes in the buffer after the last request
+    }
+}
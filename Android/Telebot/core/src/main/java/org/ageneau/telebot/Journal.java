@@ -0,0 +1,288 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Append-only binary journal of control updates and received frames, in memory-mapped segments
+ * Recording only queues the record, a background thread writes it, so callers never wait on storage
+ * Records are queued in a preallocated ring of primitive slots, without allocation or locking,
+ * and dropped when the ring is full
+ *
+ * Segment layout, big-endian:
+ * header: magic "TBJ1", int record size, long wall clock at the time base in ms
+ * records: long time in ns since the time base (monotonic), byte type, byte command,
+ *          short source, int a, int b, a zero type marks the end
+ */
+public class Journal {
+
+    private static final String TAG = "Journal";
+
+    static final int MAGIC = 0x54424A31;  // "TBJ1"
+    static final int HEADER_SIZE = 16;
+    static final int RECORD_SIZE = 20;
+
+    // Record types
+    static final byte TYPE_CONTROL = 'C';   // a = left, b = right
+    static final byte TYPE_FRAME = 'F';     // command, a = value
+
+    static final String PREFIX = "journal-";
+    static final String SUFFIX = ".bin";
+
+    private static final int DEFAULT_SEGMENT_SIZE = 1 << 20;
+    private static final int DEFAULT_MAX_SEGMENTS = 16;
+    private static final int QUEUE_SIZE = 4096;         // Power of two
+    private static final long DRAIN_INTERVAL = TimeUnit.MILLISECONDS.toNanos(10);
+    private static final long FLUSH_INTERVAL = TimeUnit.SECONDS.toNanos(1);
+
+    private final File mDirectory;
+    private final int mSegmentSize;
+    private final int mMaxSegments;
+
+    // Time base, record times are monotonic and relative to it
+    private final long mBaseNanos = System.nanoTime();
+    private final long mBaseMillis = System.currentTimeMillis();
+
+    // Bounded multi-producer ring, a slot holds { time, type | command << 8 | source << 16, a << 32 | b }
+    // The sequence of a slot is its position when free, and its position + 1 once written
+    private final long[] mSlots = new long[QUEUE_SIZE * 3];
+    private final AtomicLongArray mSequences = new AtomicLongArray(QUEUE_SIZE);
+    private final AtomicLong mTail = new AtomicLong();
+    private long mHead;     // Only accessed by the writer thread
+    private final AtomicLong mDropped = new AtomicLong();
+    private final WriterThread mWriterThread = new WriterThread();
+    private volatile boolean mClosed;
+
+    // Only accessed by the writer thread
+    private RandomAccessFile mFile;
+    private MappedByteBuffer mBuffer;
+    private int mSegmentIndex;
+    private boolean mDirty;
+
+    /**
+     * Create journal writing segments in the directory, with default segment size and retention
+     */
+    public Journal(File directory) {
+        this(directory, DEFAULT_SEGMENT_SIZE, DEFAULT_MAX_SEGMENTS);
+    }
+
+    /**
+     * Create journal with segment size in bytes and maximum number of segments kept in the directory
+     */
+    public Journal(File directory, int segmentSize, int maxSegments) {
+        if(segmentSize < HEADER_SIZE + RECORD_SIZE || maxSegments < 1)
+            throw new IllegalArgumentException("Invalid journal configuration");
+        mDirectory = directory;
+        mSegmentSize = segmentSize;
+        mMaxSegments = maxSegments;
+        for(int i = 0; i < QUEUE_SIZE; ++i)
+            mSequences.set(i, i);
+    }
+
+    /**
+     * Start the writer thread
+     */
+    public void start() {
+        mWriterThread.start();
+    }
+
+    /**
+     * Stop after writing queued records, within the drain interval
+     * The writer is not interrupted since it would close the channel while mapping
+     */
+    public void close() {
+        mClosed = true;
+    }
+
+    /**
+     * Record a control update from the specified source
+     */
+    void recordControl(int source, int left, int right) {
+        record(TYPE_CONTROL, 0, source, left, right);
+    }
+
+    /**
+     * Record a frame received from the specified source
+     */
+    void recordFrame(int source, char command, int value) {
+        record(TYPE_FRAME, command, source, value, 0);
+    }
+
+    /**
+     * Get the number of records dropped because the writer was behind
+     */
+    public long getDropped() {
+        return mDropped.get();
+    }
+
+    // Claim a slot and fill it, or drop the record if the ring is full
+    private void record(byte type, int command, int source, int a, int b) {
+        if(mClosed) return;
+        long time = System.nanoTime() - mBaseNanos;
+
+        long position;
+        int index;
+        while(true) {
+            position = mTail.get();
+            index = (int) position & (QUEUE_SIZE - 1);
+            long available = mSequences.get(index) - position;
+            if(available < 0) {
+                // Not consumed yet, the writer is a whole ring behind
+                mDropped.incrementAndGet();
+                return;
+            }
+            if(available == 0 && mTail.compareAndSet(position, position + 1)) break;
+        }
+
+        int offset = index * 3;
+        mSlots[offset] = time;
+        mSlots[offset + 1] = type | (command & 0xFF) << 8 | (source & 0xFFFF) << 16;
+        mSlots[offset + 2] = (long) a << 32 | (b & 0xFFFFFFFFL);
+        mSequences.lazySet(index, position + 1);    // Publish after the slot is filled
+    }
+
+    // Write the records published in the ring, return the number written
+    private int drain() throws IOException {
+        int count = 0;
+        while(true) {
+            int index = (int) mHead & (QUEUE_SIZE - 1);
+            if(mSequences.get(index) != mHead + 1) return count;
+
+            int offset = index * 3;
+            write(mSlots[offset], (int) mSlots[offset + 1], mSlots[offset + 2]);
+            mSequences.lazySet(index, mHead + QUEUE_SIZE);  // Free for the next round
+            ++mHead;
+            ++count;
+        }
+    }
+
+    private void write(long time, int info, long ab) throws IOException {
+        if(mBuffer == null || mBuffer.remaining() < RECORD_SIZE + 1)
+            rotate();
+
+        mBuffer.putLong(time);
+        mBuffer.put((byte) info);
+        mBuffer.put((byte) (info >> 8));
+        mBuffer.putShort((short) (info >> 16));
+        mBuffer.putInt((int) (ab >> 32));
+        mBuffer.putInt((int) ab);
+        mDirty = true;
+    }
+
+    // Open the next segment, deleting the oldest ones beyond the retention
+    private void rotate() throws IOException {
+        closeSegment();
+
+        if(!mDirectory.isDirectory() && !mDirectory.mkdirs())
+            throw new IOException("Unable to create directory " + mDirectory);
+
+        File file = new File(mDirectory, String.format(Locale.US, "%s%013d-%04d%s",
+                PREFIX, mBaseMillis, mSegmentIndex++, SUFFIX));
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(mSegmentSize);
+        mBuffer = mFile.getChannel().map(FileChannel.MapMode.READ_WRITE, 0, mSegmentSize);
+        mBuffer.putInt(MAGIC);
+        mBuffer.putInt(RECORD_SIZE);
+        mBuffer.putLong(mBaseMillis);
+        Log.d(TAG, "Writing journal segment " + file.getName());
+
+        File[] segments = listSegments(mDirectory);
+        for(int i = 0; i < segments.length - mMaxSegments; ++i) {
+            if(!segments[i].delete())
+                Log.w(TAG, "Unable to delete journal segment " + segments[i].getName());
+        }
+    }
+
+    private void closeSegment() {
+        if(mBuffer != null) {
+            mBuffer.force();
+            mBuffer = null;
+        }
+        if(mFile != null) {
+            try {
+                mFile.close();
+            } catch(IOException e) {
+                e.printStackTrace();
+            }
+            mFile = null;
+        }
+    }
+
+    /**
+     * List journal segments in the directory, oldest first
+     */
+    static File[] listSegments(File directory) {
+        File[] files = directory.listFiles();
+        if(files == null) return new File[0];
+
+        int count = 0;
+        for(File file : files) {
+            String name = file.getName();
+            if(name.startsWith(PREFIX) && name.endsWith(SUFFIX))
+                files[count++] = file;
+        }
+        File[] segments = Arrays.copyOf(files, count);
+        Arrays.sort(segments);  // Names sort by time base then index
+        return segments;
+    }
+
+    /**
+     * Thread draining the ring into the mapped segment
+     */
+    private class WriterThread extends Thread {
+
+        public void run() {
+            try {
+                long lastWrite = System.nanoTime();
+                while(!mClosed) {
+                    if(drain() > 0) {
+                        lastWrite = System.nanoTime();
+                    }
+                    else if(mDirty && System.nanoTime() - lastWrite >= FLUSH_INTERVAL) {
+                        // Idle, make the segment durable
+                        mBuffer.force();
+                        mDirty = false;
+                    }
+
+                    // Producers do not wake the writer, so recording stays cheap
+                    LockSupport.parkNanos(this, DRAIN_INTERVAL);
+                }
+
+                // Write what is left before closing
+                drain();
+
+            } catch(IOException e) {
+                Log.e(TAG, "Journal writing failed: " + e.getMessage());
+            } finally {
+                closeSegment();
+            }
+        }
+    }
+}
@@ -0,0 +1,136 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Sequential reader of journal segments, oldest first
+ */
+class JournalReader {
+
+    private final File[] mSegments;
+    private int mNextSegment;
+    private MappedByteBuffer mBuffer;
+
+    // Current segment time base and record
+    private long mBaseMillis;
+    private long mTime;
+    private byte mType;
+    private char mCommand;
+    private int mSource;
+    private int mA, mB;
+
+    /**
+     * Create reader for the segments of a journal directory
+     */
+    JournalReader(File directory) {
+        this(Journal.listSegments(directory));
+    }
+
+    JournalReader(File[] segments) {
+        mSegments = segments;
+    }
+
+    /**
+     * Move to the next record, return false at the end of the journal
+     */
+    boolean next() throws IOException {
+        while(true) {
+            if(mBuffer != null && mBuffer.remaining() >= Journal.RECORD_SIZE) {
+                long time = mBuffer.getLong();
+                byte type = mBuffer.get();
+                if(type != 0) {
+                    mTime = time;
+                    mType = type;
+                    mCommand = (char) (mBuffer.get() & 0xFF);
+                    mSource = mBuffer.getShort() & 0xFFFF;
+                    mA = mBuffer.getInt();
+                    mB = mBuffer.getInt();
+                    return true;
+                }
+            }
+
+            // End of segment
+            if(mNextSegment == mSegments.length) return false;
+            open(mSegments[mNextSegment++]);
+        }
+    }
+
+    private void open(File file) throws IOException {
+        mBuffer = null;
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            MappedByteBuffer buffer = raf.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, raf.length());
+            if(buffer.remaining() < Journal.HEADER_SIZE
+                    || buffer.getInt() != Journal.MAGIC
+                    || buffer.getInt() != Journal.RECORD_SIZE)
+                throw new IOException("Invalid journal segment " + file.getName());
+            mBaseMillis = buffer.getLong();
+            mBuffer = buffer;
+        } finally {
+            raf.close();    // The mapping stays valid
+        }
+    }
+
+    /**
+     * Get the wall clock time of the time base of the current record, in ms
+     * Records with different bases come from different sessions
+     */
+    long getBaseMillis() {
+        return mBaseMillis;
+    }
+
+    /**
+     * Get the monotonic time of the record since the time base, in ns
+     */
+    long getTime() {
+        return mTime;
+    }
+
+    byte getType() {
+        return mType;
+    }
+
+    char getCommand() {
+        return mCommand;
+    }
+
+    int getSource() {
+        return mSource;
+    }
+
+    /**
+     * Get the first value, left control or frame value
+     */
+    int getA() {
+        return mA;
+    }
+
+    /**
+     * Get the second value, right control
+     */
+    int getB() {
+        return mB;
+    }
+}
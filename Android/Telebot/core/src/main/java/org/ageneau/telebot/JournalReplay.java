@@ -0,0 +1,106 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replay the control updates of a journal through a serial handler
+ * Usage: JournalReplay <directory> <host:port> [speed] [source]
+ * A speed of 2 replays twice as fast, 0 replays as fast as possible
+ */
+public class JournalReplay {
+
+    private static final String TAG = "JournalReplay";
+    private static final long MAX_GAP = TimeUnit.SECONDS.toNanos(1);   // Between sessions
+
+    /**
+     * Replay controls of the source at the specified speed, return the number of controls replayed
+     */
+    public static int replay(File directory, SerialHandler handler, int source, double speed)
+            throws IOException, InterruptedException {
+
+        JournalReader reader = new JournalReader(directory);
+        long start = System.nanoTime();
+        long elapsed = 0;   // Recorded time since the first record, gaps between sessions shortened
+        long lastBase = 0, lastTime = 0;
+        boolean first = true;
+        int count = 0;
+
+        while(reader.next()) {
+            if(reader.getSource() != source || reader.getType() != Journal.TYPE_CONTROL)
+                continue;
+
+            if(!first) {
+                if(reader.getBaseMillis() == lastBase) elapsed+= Math.max(reader.getTime() - lastTime, 0);
+                else elapsed+= MAX_GAP;
+            }
+            first = false;
+            lastBase = reader.getBaseMillis();
+            lastTime = reader.getTime();
+
+            if(speed > 0) {
+                long deadline = start + (long) (elapsed / speed);
+                long remaining;
+                while((remaining = deadline - System.nanoTime()) > 0) {
+                    LockSupport.parkNanos(remaining);
+                    if(Thread.interrupted()) throw new InterruptedException();
+                }
+            }
+
+            handler.setControl(reader.getA(), reader.getB());
+            ++count;
+        }
+
+        return count;
+    }
+
+    public static void main(String[] args) throws Exception {
+        if(args.length < 2) {
+            System.err.println("Usage: JournalReplay <directory> <host:port> [speed] [source]");
+            System.exit(1);
+        }
+
+        File directory = new File(args[0]);
+        int colon = args[1].lastIndexOf(':');
+        String host = args[1].substring(0, colon);
+        int port = Integer.parseInt(args[1].substring(colon + 1));
+        double speed = (args.length > 2 ? Double.parseDouble(args[2]) : 1.);
+        int source = (args.length > 3 ? Integer.parseInt(args[3]) : 0);
+
+        SerialHandler handler = new SerialHandler(new TcpTransport(host, port), new SerialHandler.Listener() {
+            @Override
+            public void onBattery(int percent) {
+                Log.d(TAG, "Battery: " + percent + " %");
+            }
+        });
+
+        long start = System.nanoTime();
+        int count = replay(directory, handler, source, speed);
+        long duration = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        Log.d(TAG, "Replayed " + count + " controls in " + duration + " ms");
+        System.out.println(handler.getMetrics().toJson().toString(2));
+
+        handler.close();
+        System.exit(0);
+    }
+}
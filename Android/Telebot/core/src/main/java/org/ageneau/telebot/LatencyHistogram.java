@@ -0,0 +1,104 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Lock-free latency histogram with logarithmic buckets, in the manner of HdrHistogram
+ * Values are nanoseconds, each power of two is split in 32 buckets so the error is
+ * below 3%, and recording is a couple of atomic increments without allocation
+ */
+class LatencyHistogram {
+
+    private static final int SUB_BITS = 6;
+    private static final int SUB_COUNT = 1 << SUB_BITS;
+    private static final int HALF_COUNT = SUB_COUNT / 2;
+    private static final int MAX_BITS = 36;                         // about 68 s
+    private static final long MAX_VALUE = (1L << MAX_BITS) - 1;
+    private static final int BUCKET_COUNT = (MAX_BITS - SUB_BITS + 1) * HALF_COUNT + HALF_COUNT;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKET_COUNT);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mMax = new AtomicLong();
+
+    /**
+     * Record a value in nanoseconds, larger values are clamped
+     */
+    void record(long value) {
+        if(value < 0) value = 0;
+        else if(value > MAX_VALUE) value = MAX_VALUE;
+
+        mCounts.incrementAndGet(index(value));
+        mCount.incrementAndGet();
+
+        long max;
+        while(value > (max = mMax.get()) && !mMax.compareAndSet(max, value));
+    }
+
+    /**
+     * Record the time elapsed since a System.nanoTime() value
+     */
+    void recordSince(long start) {
+        record(System.nanoTime() - start);
+    }
+
+    long getCount() {
+        return mCount.get();
+    }
+
+    long getMax() {
+        return mMax.get();
+    }
+
+    /**
+     * Get the value below which the specified fraction of recorded values lie, 0 if empty
+     * Concurrent recording may be partially taken into account
+     */
+    long getPercentile(double fraction) {
+        long total = 0;
+        for(int i = 0; i < BUCKET_COUNT; ++i)
+            total+= mCounts.get(i);
+        if(total == 0) return 0;
+
+        long target = Math.max((long) Math.ceil(fraction * total), 1);
+        long sum = 0;
+        for(int i = 0; i < BUCKET_COUNT; ++i) {
+            sum+= mCounts.get(i);
+            if(sum >= target)
+                return Math.min(highestValue(i), mMax.get());
+        }
+        return mMax.get();
+    }
+
+    // Values below SUB_COUNT are exact, above the top bits select the bucket
+    private static int index(long value) {
+        if(value < SUB_COUNT) return (int) value;
+        int shift = 64 - Long.numberOfLeadingZeros(value) - SUB_BITS;
+        return shift * HALF_COUNT + (int) (value >>> shift);
+    }
+
+    private static long highestValue(int index) {
+        if(index < SUB_COUNT) return index;
+        int shift = index / HALF_COUNT - 1;
+        long sub = index - shift * HALF_COUNT;
+        return ((sub + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,66 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+/**
+ * Logging facade for platform-neutral code
+ * Messages go to the standard streams unless a sink is set, like the Android log
+ */
+public final class Log {
+
+    public static final int DEBUG = 3;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    /**
+     * Destination of log messages
+     */
+    public interface Sink {
+        void log(int level, String tag, String message);
+    }
+
+    private static volatile Sink sSink = new Sink() {
+        @Override
+        public void log(int level, String tag, String message) {
+            if(level >= WARN) System.err.println(tag + ": " + message);
+            else System.out.println(tag + ": " + message);
+        }
+    };
+
+    private Log() {}
+
+    /**
+     * Set the destination of log messages
+     */
+    public static void setSink(Sink sink) {
+        sSink = sink;
+    }
+
+    public static void d(String tag, String message) {
+        sSink.log(DEBUG, tag, message);
+    }
+
+    public static void w(String tag, String message) {
+        sSink.log(WARN, tag, message);
+    }
+
+    public static void e(String tag, String message) {
+        sSink.log(ERROR, tag, message);
+    }
+}
@@ -0,0 +1,173 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+
+/**
+ * In-memory link, the other end is exposed to play the device
+ */
+public class LoopbackTransport implements SerialTransport {
+
+    private static final int PIPE_SIZE = 4096;
+
+    private Pipe mToDevice;
+    private Pipe mFromDevice;
+
+    @Override
+    public synchronized void connect() throws IOException {
+        mToDevice = new Pipe(PIPE_SIZE);
+        mFromDevice = new Pipe(PIPE_SIZE);
+        notifyAll();
+    }
+
+    @Override
+    public synchronized void close() {
+        if(mToDevice != null) mToDevice.close();
+        if(mFromDevice != null) mFromDevice.close();
+    }
+
+    @Override
+    public synchronized InputStream getInputStream() throws IOException {
+        if(mFromDevice == null) throw new IOException("Not connected");
+        return mFromDevice.mInput;
+    }
+
+    @Override
+    public synchronized OutputStream getOutputStream() throws IOException {
+        if(mToDevice == null) throw new IOException("Not connected");
+        return mToDevice.mOutput;
+    }
+
+    @Override
+    public String getAddress() {
+        return "loopback";
+    }
+
+    /**
+     * Get the stream of data sent to the device, waiting for the link to be connected
+     */
+    public synchronized InputStream getDeviceInputStream() throws InterruptedException {
+        while(mToDevice == null) wait();
+        return mToDevice.mInput;
+    }
+
+    /**
+     * Get the stream to send data from the device, waiting for the link to be connected
+     */
+    public synchronized OutputStream getDeviceOutputStream() throws InterruptedException {
+        while(mFromDevice == null) wait();
+        return mFromDevice.mOutput;
+    }
+
+    /**
+     * Bounded blocking byte pipe, usable from any threads unlike PipedInputStream
+     */
+    private static class Pipe {
+        private final byte[] mBuffer;
+        private int mHead, mCount;
+        private boolean mClosed;
+
+        final InputStream mInput = new InputStream() {
+            @Override
+            public int read() throws IOException {
+                byte[] b = new byte[1];
+                return (read(b, 0, 1) < 0 ? -1 : b[0] & 0xFF);
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return Pipe.this.read(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        final OutputStream mOutput = new OutputStream() {
+            @Override
+            public void write(int b) throws IOException {
+                write(new byte[] { (byte) b }, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                Pipe.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                Pipe.this.close();
+            }
+        };
+
+        Pipe(int size) {
+            mBuffer = new byte[size];
+        }
+
+        synchronized int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) return 0;
+            try {
+                while(mCount == 0 && !mClosed) wait();
+            } catch(InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+            if(mCount == 0) return -1;
+
+            int n = Math.min(len, mCount);
+            for(int i = 0; i < n; ++i)
+                b[off + i] = mBuffer[(mHead + i) % mBuffer.length];
+            mHead = (mHead + n) % mBuffer.length;
+            mCount-= n;
+            notifyAll();
+            return n;
+        }
+
+        synchronized void write(byte[] b, int off, int len) throws IOException {
+            try {
+                while(len > 0) {
+                    if(mClosed) throw new IOException("Pipe closed");
+                    if(mCount == mBuffer.length) {
+                        wait();
+                        continue;
+                    }
+                    int n = Math.min(len, mBuffer.length - mCount);
+                    for(int i = 0; i < n; ++i)
+                        mBuffer[(mHead + mCount + i) % mBuffer.length] = b[off + i];
+                    mCount+= n;
+                    off+= n;
+                    len-= n;
+                    notifyAll();
+                }
+            } catch(InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+
+        synchronized void close() {
+            mClosed = true;
+            notifyAll();
+        }
+    }
+}
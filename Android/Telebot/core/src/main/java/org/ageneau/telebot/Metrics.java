@@ -0,0 +1,91 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Latency histograms and counters shared by the HTTP server and the serial handler
+ */
+public class Metrics {
+
+    // Request received, from accept or first bytes on a persistent connection, to parsed
+    final LatencyHistogram mAcceptToParse = new LatencyHistogram();
+    // Request parsed to processed, including executor queueing
+    final LatencyHistogram mParseToProcess = new LatencyHistogram();
+    // Controls set to written on the link, including pacing and reconnection
+    final LatencyHistogram mControl = new LatencyHistogram();
+    // Stop requested to written on the link
+    final LatencyHistogram mStop = new LatencyHistogram();
+    // Command written to acknowledged by the device
+    final LatencyHistogram mRtt = new LatencyHistogram();
+
+    final AtomicLong mReconnects = new AtomicLong();
+    final AtomicLong mWriteFailures = new AtomicLong();
+    final AtomicLong mDroppedRequests = new AtomicLong();
+
+    // Startup phases in completion order, durations in ms
+    private final Map<String, Long> mPhases = new LinkedHashMap<>();
+
+    /**
+     * Record the duration of a startup phase in milliseconds
+     */
+    public void recordPhase(String name, long duration) {
+        synchronized(mPhases) {
+            mPhases.put(name, duration);
+        }
+    }
+
+    /**
+     * Get a snapshot as JSON, latencies are in microseconds
+     */
+    public JSONObject toJson() throws JSONException {
+        JSONObject object = new JSONObject();
+        object.put("acceptToParse", toJson(mAcceptToParse));
+        object.put("parseToProcess", toJson(mParseToProcess));
+        object.put("control", toJson(mControl));
+        object.put("stop", toJson(mStop));
+        object.put("rtt", toJson(mRtt));
+        object.put("reconnects", mReconnects.get());
+        object.put("writeFailures", mWriteFailures.get());
+        object.put("droppedRequests", mDroppedRequests.get());
+
+        JSONObject phases = new JSONObject();
+        synchronized(mPhases) {
+            for(Map.Entry<String, Long> entry : mPhases.entrySet())
+                phases.put(entry.getKey(), entry.getValue().longValue());
+        }
+        object.put("startup", phases);
+        return object;
+    }
+
+    private static JSONObject toJson(LatencyHistogram histogram) throws JSONException {
+        JSONObject object = new JSONObject();
+        object.put("count", histogram.getCount());
+        object.put("p50", histogram.getPercentile(0.50) / 1000);
+        object.put("p99", histogram.getPercentile(0.99) / 1000);
+        object.put("max", histogram.getMax() / 1000);
+        return object;
+    }
+}
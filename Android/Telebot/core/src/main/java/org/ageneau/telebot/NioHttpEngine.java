@@ -0,0 +1,366 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Selector-based engine for HttpServer
+ * Connections are persistent and pipelined requests are answered in order,
+ * requests are processed on the server executor so the selector never blocks
+ */
+class NioHttpEngine {
+
+    private static final int BUFFER_SIZE = 4096;
+    private static final int MAX_REQUEST_SIZE = HttpRequestParser.MAX_HEAD_SIZE + HttpRequestParser.MAX_BODY_SIZE;
+    private static final long IDLE_TIMEOUT = 30000;     // ms
+    private static final long SELECT_TIMEOUT = 1000;    // ms
+
+    private final HttpServer mServer;
+    private final Selector mSelector;
+    private final ServerSocketChannel mServerChannel;
+    private final ConcurrentLinkedQueue<Connection> mCompleted = new ConcurrentLinkedQueue<>();
+    private final List<Connection> mDetached = new ArrayList<>();
+    private volatile boolean mRunning = true;
+
+    /**
+     * Open the listening channel for specified port
+     */
+    NioHttpEngine(HttpServer server, int port, int backlog) throws IOException {
+        mServer = server;
+        mSelector = Selector.open();
+        mServerChannel = ServerSocketChannel.open();
+        mServerChannel.configureBlocking(false);
+        mServerChannel.socket().setReuseAddress(true);
+        mServerChannel.socket().bind(new InetSocketAddress(port), backlog);
+        mServerChannel.register(mSelector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Stop the engine, the selector loop will exit
+     */
+    void stop() {
+        mRunning = false;
+        mSelector.wakeup();
+    }
+
+    /**
+     * Selector loop
+     */
+    void run() {
+        try {
+            while(mRunning) {
+                // Connections detached in the last iteration must not wait for the timeout,
+                // a non-blocking select deregisters their cancelled keys right away
+                if(mDetached.isEmpty()) mSelector.select(SELECT_TIMEOUT);
+                else mSelector.selectNow();
+
+                // Keys of detached connections are now deregistered
+                for(Connection connection : mDetached)
+                    connection.detach();
+                mDetached.clear();
+
+                // Send responses completed by workers
+                Connection completed;
+                while((completed = mCompleted.poll()) != null)
+                    completed.complete();
+
+                Iterator<SelectionKey> it = mSelector.selectedKeys().iterator();
+                while(it.hasNext()) {
+                    SelectionKey key = it.next();
+                    it.remove();
+                    if(!key.isValid())
+                        continue;
+
+                    if(key.isAcceptable()) {
+                        accept();
+                        continue;
+                    }
+
+                    Connection connection = (Connection) key.attachment();
+                    try {
+                        if(key.isReadable()) connection.read();
+                        if(key.isValid() && key.isWritable()) connection.write();
+                    } catch(IOException e) {
+                        connection.close();
+                    }
+                }
+
+                expireIdle();
+            }
+        } catch(ClosedSelectorException e) {
+            // Stopped
+        } catch(IOException e) {
+            e.printStackTrace();
+        } finally {
+            for(SelectionKey key : mSelector.keys()) {
+                if(key.attachment() instanceof Connection)
+                    ((Connection) key.attachment()).close();
+            }
+            try {
+                mServerChannel.close();
+                mSelector.close();
+            } catch(IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * Accept pending connections
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while((channel = mServerChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.socket().setTcpNoDelay(true);
+            SelectionKey key = channel.register(mSelector, SelectionKey.OP_READ);
+            key.attach(new Connection(channel, key));
+        }
+    }
+
+    /**
+     * Close connections idle for too long
+     */
+    private void expireIdle() {
+        long now = System.currentTimeMillis();
+        for(SelectionKey key : mSelector.keys()) {
+            if(key.attachment() instanceof Connection) {
+                Connection connection = (Connection) key.attachment();
+                if(!connection.mBusy && now - connection.mLastActivity > IDLE_TIMEOUT)
+                    connection.close();
+            }
+        }
+    }
+
+    /**
+     * Persistent connection state, buffers are reused across requests
+     */
+    private class Connection {
+        private final SocketChannel mChannel;
+        private final SelectionKey mKey;
+        private ByteBuffer mIn = ByteBuffer.allocate(BUFFER_SIZE);
+        private ByteBuffer mOut = ByteBuffer.allocate(BUFFER_SIZE);
+        private final HttpRequestParser mParser = new HttpRequestParser();
+        private final HttpRequest mRequest = new HttpRequest();
+        private final OutputBuffer mOutput = new OutputBuffer(BUFFER_SIZE);
+
+        private boolean mBusy;              // A request is being processed
+        private boolean mCloseAfterWrite;
+        private long mLastActivity = System.currentTimeMillis();
+        private long mReceiveTime;          // First bytes of the next request received
+
+        // Set by the worker, read by the selector thread after dequeuing
+        private HttpResponse mPendingResponse;
+        private boolean mPendingKeepAlive;
+
+        private HttpResponse mStreamResponse;
+
+        Connection(SocketChannel channel, SelectionKey key) {
+            mChannel = channel;
+            mKey = key;
+        }
+
+        void read() throws IOException {
+            if(!mIn.hasRemaining()) {
+                if(mIn.capacity() >= MAX_REQUEST_SIZE) {
+                    // Wait for the pending request to complete before reading more
+                    mKey.interestOps(mKey.interestOps() & ~SelectionKey.OP_READ);
+                    return;
+                }
+                mIn = grow(mIn, mIn.capacity() * 2);
+            }
+
+            if(mIn.position() == 0) mReceiveTime = System.nanoTime();
+            int n = mChannel.read(mIn);
+            if(n < 0) {
+                // Half-closed by client, finish pending work first
+                if(mBusy) {
+                    mCloseAfterWrite = true;
+                    mKey.interestOps(mKey.interestOps() & ~SelectionKey.OP_READ);
+                }
+                else close();
+                return;
+            }
+
+            mLastActivity = System.currentTimeMillis();
+            parse();
+        }
+
+        void write() throws IOException {
+            mOut.flip();
+            mChannel.write(mOut);
+            mOut.compact();
+
+            if(mOut.position() > 0) {
+                mKey.interestOps(mKey.interestOps() | SelectionKey.OP_WRITE);
+            }
+            else {
+                if(mCloseAfterWrite && !mBusy) close();
+                else mKey.interestOps(mKey.interestOps() & ~SelectionKey.OP_WRITE);
+            }
+        }
+
+        // Called on the selector thread once the worker has produced the response
+        void complete() {
+            if(!mChannel.isOpen()) {
+                mPendingResponse.release();     // The stream will not start
+                mPendingResponse = null;
+                return;
+            }
+            try {
+                send(mPendingResponse, mPendingKeepAlive);
+                mPendingResponse = null;
+                if(!mKey.isValid() || mCloseAfterWrite) return;
+                mKey.interestOps(mKey.interestOps() | SelectionKey.OP_READ);
+                parse();
+            } catch(IOException e) {
+                close();
+            }
+        }
+
+        // Switch the channel to blocking mode and hand it over to the stream handler
+        void detach() {
+            try {
+                mChannel.configureBlocking(true);
+                Socket socket = mChannel.socket();
+                OutputStream out = socket.getOutputStream();
+                out.write(mOut.array(), 0, mOut.position());
+                out.flush();
+
+                // Bytes received after the request belong to the stream
+                InputStream in = socket.getInputStream();
+                if(mIn.position() > 0)
+                    in = new SequenceInputStream(new ByteArrayInputStream(mIn.array(), 0, mIn.position()), in);
+
+                mServer.startStream(socket, in, out, mStreamResponse);
+            } catch(IOException e) {
+                mStreamResponse.release();
+                close();
+            }
+        }
+
+        void close() {
+            mKey.cancel();
+            try {
+                mChannel.close();
+            } catch(IOException e) {
+                e.printStackTrace();
+            }
+        }
+
+        // Parse and dispatch buffered requests, one at a time to keep responses in order
+        private void parse() throws IOException {
+            while(!mBusy && !mCloseAfterWrite && mChannel.isOpen()) {
+                int result = mParser.parse(mIn.array(), 0, mIn.position(), mRequest);
+                if(result == HttpRequestParser.INCOMPLETE) {
+                    // Make room for the whole body
+                    int required = mParser.getRequiredLength();
+                    if(mIn.capacity() < required)
+                        mIn = grow(mIn, required);
+                    return;
+                }
+                if(result < 0) {
+                    send(HttpServer.error(result), false);
+                    return;
+                }
+
+                mRequest.mReceiveTime = mReceiveTime;
+                mRequest.mParseTime = System.nanoTime();
+
+                // Consume the request from the input buffer, the request holds a copy
+                mIn.flip();
+                mIn.position(result);
+                mIn.compact();
+
+                final boolean keepAlive = mRequest.isKeepAlive();
+                mBusy = true;
+
+                if(mServer.isInline()) {
+                    mBusy = false;
+                    send(mServer.respond(mRequest), keepAlive);
+                    continue;
+                }
+
+                boolean accepted = mServer.submit(new Runnable() {
+                    @Override
+                    public void run() {
+                        mPendingResponse = mServer.respond(mRequest);
+                        mPendingKeepAlive = keepAlive;
+                        mCompleted.add(Connection.this);
+                        mSelector.wakeup();
+                    }
+                });
+
+                if(!accepted) {
+                    mServer.getMetrics().mDroppedRequests.incrementAndGet();
+                    mBusy = false;
+                    send(HttpResponse.UNAVAILABLE, keepAlive);
+                }
+            }
+        }
+
+        // Queue a response for writing, clears the busy flag
+        private void send(HttpResponse response, boolean keepAlive) throws IOException {
+            mBusy = false;
+            mOutput.reset();
+            response.writeTo(mOutput, keepAlive);
+            int length = mOutput.getLength();
+            if(mOut.remaining() < length)
+                mOut = grow(mOut, mOut.position() + length);
+            mOut.put(mOutput.getBuffer(), 0, length);
+
+            if(response.getStreamHandler() != null) {
+                // The channel must leave the selector before it can block
+                mStreamResponse = response;
+                mCloseAfterWrite = true;
+                mKey.cancel();
+                mDetached.add(this);
+                return;
+            }
+
+            if(!keepAlive) mCloseAfterWrite = true;
+            mLastActivity = System.currentTimeMillis();
+            write();
+        }
+    }
+
+    private static ByteBuffer grow(ByteBuffer buffer, int capacity) {
+        ByteBuffer b = ByteBuffer.allocate(Math.max(capacity, buffer.capacity()));
+        buffer.flip();
+        b.put(buffer);
+        return b;
+    }
+}
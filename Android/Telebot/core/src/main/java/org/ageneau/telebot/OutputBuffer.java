@@ -0,0 +1,83 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import java.io.OutputStream;
+
+/**
+ * Growable byte buffer usable as an output stream, reused to avoid allocation
+ */
+class OutputBuffer extends OutputStream {
+
+    private byte[] mBuffer;
+    private int mLength;
+
+    OutputBuffer(int capacity) {
+        mBuffer = new byte[capacity];
+    }
+
+    void reset() {
+        mLength = 0;
+    }
+
+    byte[] getBuffer() {
+        return mBuffer;
+    }
+
+    int getLength() {
+        return mLength;
+    }
+
+    @Override
+    public void write(int b) {
+        ensureCapacity(mLength + 1);
+        mBuffer[mLength++] = (byte) b;
+    }
+
+    @Override
+    public void write(byte[] b, int off, int len) {
+        ensureCapacity(mLength + len);
+        System.arraycopy(b, off, mBuffer, mLength, len);
+        mLength+= len;
+    }
+
+    /**
+     * Write an integer in decimal
+     */
+    void writeDecimal(long value) {
+        if(value < 0) {
+            write('-');
+            value = -value;
+        }
+        long div = 1;
+        while(div <= value / 10) div*= 10;
+        while(div > 0) {
+            write('0' + (int) ((value / div) % 10));
+            div/= 10;
+        }
+    }
+
+    private void ensureCapacity(int capacity) {
+        if(capacity > mBuffer.length) {
+            byte[] buffer = new byte[Math.max(capacity, mBuffer.length * 2)];
+            System.arraycopy(mBuffer, 0, buffer, 0, mLength);
+            mBuffer = buffer;
+        }
+    }
+}
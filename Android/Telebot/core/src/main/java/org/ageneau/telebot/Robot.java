@@ -0,0 +1,241 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Robot registered on the server, with its serial handler and control state
+ * Each robot has its own lock, writer and link, so robots do not contend with each other
+ */
+public class Robot {
+
+    private final String mId;
+    private final int mIndex;
+    private final SerialHandler mHandler;
+    private volatile ControlLoop mControlLoop;
+    private volatile Journal mJournal;
+
+    // Current controls, replaced under the lock and read without it
+    private final Object mStateLock = new Object();
+    private volatile ControlState mState;
+
+    // Trajectory being played, replaced or cancelled under the state lock
+    private Trajectory mTrajectory;
+    private long mTrajectoryStart;          // ns
+    private long mTrajectoryGeneration;
+    private long mTrajectoryTrace;          // Trace of the request, carried by the setpoints
+    private Thread mPlayer;
+    private volatile boolean mClosed;
+
+    Robot(String id, int index, SerialHandler handler) {
+        mId = id;
+        mIndex = index;
+        mHandler = handler;
+        mState = new ControlState(id + "-" + Long.toString(System.currentTimeMillis(), 36));
+        mHandler.setControl(0, 0);
+    }
+
+    /**
+     * Get the identifier used in routes
+     */
+    public String getId() {
+        return mId;
+    }
+
+    /**
+     * Get the registration index, used as the journal source
+     */
+    public int getIndex() {
+        return mIndex;
+    }
+
+    public SerialHandler getHandler() {
+        return mHandler;
+    }
+
+    /**
+     * Record control updates and received frames in the journal, or stop recording if null
+     */
+    void setJournal(Journal journal) {
+        mJournal = journal;
+        mHandler.setJournal(journal, mIndex);
+    }
+
+    /**
+     * Drive the motors through a control loop instead of setting them directly
+     * The loop is stopped with the robot
+     */
+    public void setControlLoop(ControlLoop loop) {
+        mControlLoop = loop;
+    }
+
+    /**
+     * Get the current control state
+     */
+    ControlState getState() {
+        return mState;
+    }
+
+    /**
+     * Set the current controls, cancelling the trajectory being played if any
+     */
+    void setControl(int left, int right) {
+        synchronized(mStateLock) {
+            if(mTrajectory != null) {
+                mTrajectory = null;
+                ++mTrajectoryGeneration;
+                LockSupport.unpark(mPlayer);
+            }
+            applyControl(left, right);
+        }
+    }
+
+    /**
+     * Play the trajectory from now, replacing the one being played if any
+     * Setpoints of the previous trajectory are never applied once this returns
+     */
+    void play(Trajectory trajectory) {
+        synchronized(mStateLock) {
+            if(mClosed) return;
+            mTrajectory = trajectory;
+            mTrajectoryStart = System.nanoTime();
+            mTrajectoryTrace = Trace.current();
+            ++mTrajectoryGeneration;
+
+            if(mPlayer == null) {
+                mPlayer = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        playTrajectories();
+                    }
+                }, "Trajectory-" + mId);
+                mPlayer.setDaemon(true);
+                mPlayer.setPriority(Thread.MAX_PRIORITY);
+                mPlayer.start();
+            }
+            else {
+                LockSupport.unpark(mPlayer);
+            }
+        }
+    }
+
+    /**
+     * Check if a trajectory is being played
+     */
+    boolean isPlaying() {
+        synchronized(mStateLock) {
+            return mTrajectory != null;
+        }
+    }
+
+    /**
+     * Set the current controls, through the control loop if any, and wake up long-polls on change
+     * Must be called with the state lock held
+     */
+    private void applyControl(int left, int right) {
+        ControlState state = mState.with(left, right);
+        if(state != mState) {
+            mState = state;
+            mStateLock.notifyAll();
+
+            Journal journal = mJournal;
+            if(journal != null) journal.recordControl(mIndex, left, right);
+        }
+
+        ControlLoop loop = mControlLoop;
+        if(loop != null) loop.setTarget(left, right);
+        else mHandler.setControl(left, right);
+    }
+
+    /**
+     * Player thread, parks until the next setpoint is due and applies it unless the trajectory changed
+     * When late, intermediate setpoints are skipped and the latest due one is applied
+     */
+    private void playTrajectories() {
+        long generation = 0;
+        Trajectory trajectory = null;
+        long start = 0;
+        int index = 0;
+
+        while(!mClosed) {
+            long delay = 0;     // 0 to wait for a trajectory
+            synchronized(mStateLock) {
+                if(mTrajectoryGeneration != generation) {
+                    generation = mTrajectoryGeneration;
+                    trajectory = mTrajectory;
+                    start = mTrajectoryStart;
+                    index = 0;
+                    Trace.setCurrent(mTrajectoryTrace);
+                }
+
+                if(trajectory != null) {
+                    long elapsed = System.nanoTime() - start;
+                    int due = index;
+                    while(due < trajectory.size() && trajectory.getTime(due) <= elapsed) ++due;
+
+                    if(due > index) {
+                        index = due;
+                        applyControl(trajectory.getLeft(index - 1), trajectory.getRight(index - 1));
+                    }
+
+                    if(index < trajectory.size()) {
+                        delay = trajectory.getTime(index) - elapsed;
+                    }
+                    else {
+                        // Finished, the last setpoint is held
+                        mTrajectory = null;
+                        trajectory = null;
+                    }
+                }
+            }
+
+            if(delay > 0) LockSupport.parkNanos(this, delay);
+            else LockSupport.park(this);
+        }
+    }
+
+    /**
+     * Wait for the state to change from the specified one, return the current state after timeout ms
+     */
+    ControlState awaitChange(ControlState state, long timeout) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeout;
+        synchronized(mStateLock) {
+            long remaining;
+            while(mState == state && (remaining = deadline - System.currentTimeMillis()) > 0)
+                mStateLock.wait(remaining);
+            return mState;
+        }
+    }
+
+    /**
+     * Stop the trajectory player and the control loop, and close the link
+     */
+    void close() {
+        synchronized(mStateLock) {
+            mClosed = true;
+            mTrajectory = null;
+            if(mPlayer != null) LockSupport.unpark(mPlayer);
+        }
+        ControlLoop loop = mControlLoop;
+        if(loop != null)
+            loop.stop();
+        mHandler.close();
+    }
+}
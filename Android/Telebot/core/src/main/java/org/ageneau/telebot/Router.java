@@ -0,0 +1,146 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Router matching paths against patterns compiled into segments, like "/robots/{id}/control"
+ * A pattern may contain one parameter segment, matching is done in place without splitting the path
+ */
+class Router {
+
+    /**
+     * Result of a match, with the target and the parameter value if any
+     */
+    static final class Match {
+        private final int mTarget;
+        private final String mParam;
+
+        Match(int target, String param) {
+            mTarget = target;
+            mParam = param;
+        }
+
+        int getTarget() {
+            return mTarget;
+        }
+
+        /**
+         * Get the parameter value, or null if the pattern has none
+         */
+        String getParam() {
+            return mParam;
+        }
+    }
+
+    private static class Pattern {
+        private final String[] mSegments;   // null for the parameter
+        private final int mTarget;
+        private final Match mMatch;         // Shared result if there is no parameter
+
+        Pattern(String[] segments, int target) {
+            mSegments = segments;
+            mTarget = target;
+            boolean hasParam = false;
+            for(String segment : segments)
+                hasParam|= (segment == null);
+            mMatch = (hasParam ? null : new Match(target, null));
+        }
+    }
+
+    private final List<Pattern> mPatterns = new ArrayList<>();
+
+    /**
+     * Add a pattern, patterns are tried in order
+     */
+    Router add(String pattern, int target) {
+        if(!pattern.startsWith("/"))
+            throw new IllegalArgumentException("Pattern must start with a slash: " + pattern);
+
+        String[] segments = (pattern.length() > 1 ? pattern.substring(1).split("/", -1) : new String[0]);
+        int params = 0;
+        for(int i = 0; i < segments.length; ++i) {
+            if(segments[i].startsWith("{") && segments[i].endsWith("}")) {
+                segments[i] = null;
+                ++params;
+            }
+        }
+        if(params > 1)
+            throw new IllegalArgumentException("Pattern has more than one parameter: " + pattern);
+
+        mPatterns.add(new Pattern(segments, target));
+        return this;
+    }
+
+    /**
+     * Match a path, return null if no pattern matches
+     */
+    Match match(String path) {
+        if(path.isEmpty() || path.charAt(0) != '/') return null;
+
+        for(int p = 0; p < mPatterns.size(); ++p) {
+            Pattern pattern = mPatterns.get(p);
+            String[] segments = pattern.mSegments;
+
+            int pos = 1;
+            int paramStart = -1, paramEnd = -1;
+            boolean matches = true;
+            if(segments.length == 0) {
+                matches = (path.length() == 1);
+            }
+            else {
+                for(int i = 0; i < segments.length; ++i) {
+                    if(pos > path.length()) {
+                        matches = false;
+                        break;
+                    }
+                    int end = path.indexOf('/', pos);
+                    if(end < 0) end = path.length();
+                    if((end == path.length()) != (i == segments.length - 1)) {
+                        matches = false;
+                        break;
+                    }
+
+                    String segment = segments[i];
+                    if(segment == null) {
+                        if(end == pos) {
+                            matches = false;
+                            break;
+                        }
+                        paramStart = pos;
+                        paramEnd = end;
+                    }
+                    else if(end - pos != segment.length() || !path.regionMatches(pos, segment, 0, segment.length())) {
+                        matches = false;
+                        break;
+                    }
+                    pos = end + 1;
+                }
+            }
+
+            if(matches) {
+                if(pattern.mMatch != null) return pattern.mMatch;
+                return new Match(pattern.mTarget, path.substring(paramStart, paramEnd));
+            }
+        }
+        return null;
+    }
+}
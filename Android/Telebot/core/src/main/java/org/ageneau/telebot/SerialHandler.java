@@ -0,0 +1,692 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.LockSupport;
+
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Handle serial connection to the device over a transport
+ */
+public class SerialHandler {
+
+    /**
+     * Receiver of device status
+     */
+    public interface Listener {
+        void onBattery(int percent);
+    }
+
+    private static final String TAG = "SerialHandler";
+
+    // Link to the device, the input buffer is the SoftwareSerial one on the Arduino
+    private static final int BAUD_RATE = 9600;
+    private static final int DEVICE_BUFFER_SIZE = 64;
+    private static final long NEGOTIATION_TIMEOUT = 500;   // ms
+    private static final int RECEIVE_BUFFER_SIZE = 256;
+    private static final int TELEMETRY_CAPACITY = 256;     // Frames kept for subscribers
+    private static final int ACK_WINDOW = 4;                // Commands in flight with acknowledgements
+    private static final double MIN_RATE = 100;             // bytes per second, when adapting to the link
+
+    // Battery polling, faster while driving or when the battery is low
+    private static final long STATUS_POLL_FAST = 5000;      // ms
+    private static final long STATUS_POLL_SLOW = 60000;     // ms
+    private static final long DRIVING_HOLD = 10000;         // ms after the last motion
+    private static final int LOW_BATTERY = 20;              // percent
+    private static final long STOPPED = ControlMailbox.pack(0, 0);
+
+    // Delays between reconnection attempts, with jitter
+    private static final long RECONNECT_MIN_DELAY = 250;    // ms
+    private static final long RECONNECT_MAX_DELAY = 10000;  // ms
+
+    private final SerialTransport mTransport;
+    private final Listener mListener;
+
+    private volatile SerialThread mSerialThread;
+
+    // Link state, the supervisor reconnects in background when the link is lost
+    private final Object mLinkLock = new Object();
+    private final Object mConnectLock = new Object();
+    private volatile boolean mConnected;
+    private final SupervisorThread mSupervisorThread = new SupervisorThread();
+
+    // Outbound lanes by priority: stop, motion from the mailbox, then housekeeping
+    // The writer serves the highest pending lane, lower lanes give way while waiting for the link
+    private final ControlMailbox mMailbox = new ControlMailbox();
+    private final WriterThread mWriterThread = new WriterThread();
+    private volatile boolean mStopRequested;
+    private volatile boolean mClosed;                           // Set under the handler lock
+    private volatile boolean mBatteryRequested;
+    private volatile long mLastControl = ControlMailbox.EMPTY;  // Last controls written
+    private volatile long mControlTime;                         // System.nanoTime() of last setControl
+    private volatile long mStopTime;                            // System.nanoTime() of last stop
+    private volatile long mControlTrace, mStopTrace;            // Trace of the requests, 0 if none
+    private final long[] mSentTraces = new long[256];           // Trace of in-flight commands by sequence
+
+    private volatile Metrics mMetrics = new Metrics();
+    private final TelemetryRing mTelemetry = new TelemetryRing(TELEMETRY_CAPACITY);
+    private volatile Journal mJournal;
+    private volatile int mJournalSource;
+
+    private volatile DeviceStatus mStatus = DeviceStatus.UNKNOWN;
+    private volatile long mMotionTime;                          // Last time motion controls were written
+    private final StatusPollerThread mStatusPollerThread = new StatusPollerThread();
+
+    private final TokenBucket mPacer = TokenBucket.forBaudRate(BAUD_RATE, DEVICE_BUFFER_SIZE);
+    private final AckWindow mAckWindow = new AckWindow(ACK_WINDOW, mPacer, MIN_RATE);
+    private final CommandBuffer mCommands = new CommandBuffer(32);
+    private volatile SerialProtocol mProtocol = new TextProtocol();
+    private volatile CountDownLatch mNegotiation;
+    private volatile int mDeviceVersion;
+
+    /**
+     * Constructor, set transport and connect serial on device
+     */
+    public SerialHandler(SerialTransport transport, Listener listener) throws IOException {
+        this(transport, listener, false);
+
+        // Connect device
+        connect();
+        startThreads();
+    }
+
+    /**
+     * Create a handler connecting in background with retries
+     * Controls set before the link is up are kept and sent once connected
+     */
+    public static SerialHandler connectInBackground(SerialTransport transport, Listener listener) {
+        return new SerialHandler(transport, listener, true);
+    }
+
+    private SerialHandler(SerialTransport transport, Listener listener, boolean start) {
+        mTransport = transport;
+        mListener = listener;
+        if(start)
+            startThreads();
+    }
+
+    /**
+     * Start sending controls, the supervisor connects first if the link is not up
+     */
+    private void startThreads() {
+        mWriterThread.start();
+        mSupervisorThread.start();
+        mStatusPollerThread.start();
+    }
+
+    /**
+     * Connect serial, dropping the previous link if any
+     */
+    public void connect() throws IOException {
+        synchronized(mConnectLock) {
+            setConnected(false);
+            synchronized(this) {
+                mSerialThread = null;
+            }
+            mTransport.close();
+
+            // Open the link, the handler may have been closed while connecting
+            mTransport.connect();
+
+            // Create thread, close() sets mClosed and drops the thread under the handler lock
+            SerialThread thread;
+            synchronized(this) {
+                if(mClosed) {
+                    mTransport.close();
+                    throw new IOException("Handler closed");
+                }
+                thread = new SerialThread(mTransport.getInputStream(), mTransport.getOutputStream());
+                mSerialThread = thread;
+            }
+            thread.start();
+
+            // Switch to binary framing if the firmware supports it
+            negotiate();
+
+            // Reset control
+            if(!writeControl(0, 0))
+                throw new IOException("Unable to write to device");
+
+            // Ask for battery status
+            requestBattery();
+
+            // Do not report the link up if the handler was closed meanwhile
+            synchronized(this) {
+                if(mClosed) throw new IOException("Handler closed");
+                setConnected(true);
+            }
+        }
+    }
+
+    /**
+     * Close serial
+     */
+    public void close() {
+        mSupervisorThread.interrupt();
+        mStatusPollerThread.interrupt();
+        mWriterThread.interrupt();
+
+        // The final stop is written under the handler lock after marking the handler closed,
+        // so a writer already waiting for the lock can not send motion after it
+        synchronized(this) {
+            mClosed = true;
+            if(mSerialThread != null)
+                writeControl(0, 0);
+            mSerialThread = null;
+        }
+
+        setConnected(false);
+        mTransport.close();
+    }
+
+    /**
+     * Return true if the link is up, controls set while it is down are kept until reconnection
+     */
+    public boolean isConnected() {
+        return mConnected;
+    }
+
+    /**
+     * Get device address
+     */
+    public String getAddress() {
+        return mTransport.getAddress();
+    }
+
+    /**
+     * Get latency histograms and counters
+     */
+    public Metrics getMetrics() {
+        return mMetrics;
+    }
+
+    /**
+     * Record into the specified metrics, typically the ones of the HTTP server
+     */
+    public void setMetrics(Metrics metrics) {
+        mMetrics = metrics;
+    }
+
+    /**
+     * Get the latest device status, without any request on the link
+     */
+    public DeviceStatus getStatus() {
+        return mStatus;
+    }
+
+    /**
+     * Get the state of the link as JSON, with RTT and window occupancy when commands are acknowledged
+     */
+    public JSONObject getLinkStatus() throws JSONException {
+        return mAckWindow.toJson();
+    }
+
+    /**
+     * Record received frames in the journal under the specified source, or stop recording if null
+     */
+    void setJournal(Journal journal, int source) {
+        mJournalSource = source;
+        mJournal = journal;
+    }
+
+    /**
+     * Get the buffer of frames received from the device
+     */
+    TelemetryRing getTelemetry() {
+        return mTelemetry;
+    }
+
+    /**
+     * Set motor controls, values are in percent
+     * The call returns immediately, only the latest controls are sent
+     */
+    public void setControl(int left, int right) {
+        mControlTime = System.nanoTime();
+        mControlTrace = Trace.current();
+        if(left == 0 && right == 0) stop();
+        else mMailbox.publish(left, right);
+    }
+
+    /**
+     * Stop the motors ahead of any other pending command, pending motion is discarded
+     */
+    public void stop() {
+        mStopTime = System.nanoTime();
+        mStopTrace = Trace.current();
+        mStopRequested = true;
+        mMailbox.publish(0, 0);     // Replace pending motion, and wake up the writer
+    }
+
+    /**
+     * Write motor control command, return false on failure
+     */
+    private synchronized boolean writeControl(int left, int right) {
+        mCommands.reset();
+        mProtocol.encodeControl(mCommands, left, right);
+
+        boolean success = (mSerialThread != null && mSerialThread.write(mCommands));
+        mLastControl = (success ? ControlMailbox.pack(left, right) : ControlMailbox.EMPTY);
+        return success;
+    }
+
+    /**
+     * Queue a battery status request in the housekeeping lane
+     */
+    private void queueBatteryRequest() {
+        mBatteryRequested = true;
+        LockSupport.unpark(mWriterThread);
+    }
+
+    /**
+     * Ask the device for battery status
+     */
+    private synchronized boolean requestBattery() {
+        mCommands.reset();
+        mProtocol.encodeBatteryRequest(mCommands);
+        return (mSerialThread != null && mSerialThread.write(mCommands));
+    }
+
+    /**
+     * Negotiate binary framing, old firmware answers with an error and text is kept
+     */
+    private void negotiate() {
+        TextProtocol text = new TextProtocol();
+        mProtocol = text;
+        mDeviceVersion = 0;
+        mNegotiation = new CountDownLatch(1);
+
+        synchronized(this) {
+            mCommands.reset();
+            text.encodeNegotiation(mCommands, BinaryProtocol.ACK_VERSION);
+            if(mSerialThread == null || !mSerialThread.write(mCommands)) return;
+        }
+
+        try {
+            mNegotiation.await(NEGOTIATION_TIMEOUT, TimeUnit.MILLISECONDS);
+        } catch(InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+
+        if(mDeviceVersion >= BinaryProtocol.VERSION) {
+            mProtocol = new BinaryProtocol();
+            Log.d(TAG, "Using binary protocol" + (mDeviceVersion >= BinaryProtocol.ACK_VERSION ? " with acknowledgements" : ""));
+        }
+        else Log.d(TAG, "Using text protocol");
+        mAckWindow.reset(mDeviceVersion >= BinaryProtocol.ACK_VERSION);
+    }
+
+    private void setConnected(boolean connected) {
+        synchronized(mLinkLock) {
+            mConnected = connected;
+            mLinkLock.notifyAll();
+        }
+    }
+
+    /**
+     * Mark the link as lost if the thread is the current one, the supervisor will reconnect
+     */
+    private void linkLost(SerialThread thread) {
+        synchronized(mLinkLock) {
+            if(thread != mSerialThread || !mConnected) return;
+            mConnected = false;
+            mLinkLock.notifyAll();
+        }
+        Log.w(TAG, "Link to device lost");
+    }
+
+    /**
+     * Wait until the link is up
+     */
+    public void awaitConnected() throws InterruptedException {
+        synchronized(mLinkLock) {
+            while(!mConnected) mLinkLock.wait();
+        }
+    }
+
+    private static final int LANE_STOP = 0;
+    private static final int LANE_MOTION = 1;
+    private static final int LANE_HOUSEKEEPING = 2;
+
+    private static final int WRITTEN = 0;
+    private static final int PREEMPTED = 1;
+    private static final int FAILED = 2;
+
+    /**
+     * Thread sending commands by lane priority, skipping unchanged controls
+     * While the link is down, the pending controls are replaced by newer ones
+     */
+    private class WriterThread extends Thread {
+
+        private final CommandBuffer mLaneCommands = new CommandBuffer(32);
+
+        public void run() {
+            mMailbox.setConsumer(this);
+            try {
+                long control = ControlMailbox.EMPTY;
+                while(true) {
+                    awaitConnected();
+
+                    // Stop lane, pending motion is obsolete
+                    if(mStopRequested) {
+                        mStopRequested = false;
+                        control = ControlMailbox.EMPTY;
+                        if(mLastControl != STOPPED) {
+                            long start = mStopTime;
+                            long trace = mStopTrace;
+                            if(trace != 0) Trace.span(trace, Trace.SPAN_QUEUE, start, System.nanoTime());
+                            if(write(LANE_STOP, STOPPED, trace) == WRITTEN) mMetrics.mStop.recordSince(start);
+                            else mStopRequested = true;     // Retry when the link is back
+                        }
+                        continue;
+                    }
+
+                    // Motion lane
+                    long newer = mMailbox.poll();
+                    if(newer != ControlMailbox.EMPTY)
+                        control = newer;
+                    if(control == mLastControl)
+                        control = ControlMailbox.EMPTY;
+
+                    if(control != ControlMailbox.EMPTY) {
+                        long start = mControlTime;
+                        long trace = mControlTrace;
+                        if(trace != 0) Trace.span(trace, Trace.SPAN_QUEUE, start, System.nanoTime());
+                        boolean wasDriving = isDriving();
+                        if(write(LANE_MOTION, control, trace) == WRITTEN) {
+                            mMetrics.mControl.recordSince(start);
+                            if(control != STOPPED) {
+                                // Poll status faster while driving
+                                mMotionTime = System.currentTimeMillis();
+                                if(!wasDriving) LockSupport.unpark(mStatusPollerThread);
+                            }
+                            control = ControlMailbox.EMPTY;
+                        }
+                        // Otherwise keep the controls until the link is back or a stop replaces them
+                        continue;
+                    }
+
+                    // Housekeeping lane
+                    if(mBatteryRequested) {
+                        mBatteryRequested = false;
+                        if(write(LANE_HOUSEKEEPING, 0, 0) == PREEMPTED)
+                            mBatteryRequested = true;
+                        continue;
+                    }
+
+                    LockSupport.park(this);
+                    if(Thread.interrupted()) throw new InterruptedException();
+                }
+            } catch(InterruptedException e) {
+                // Closed
+            }
+        }
+
+        // Encode and write a command when the link budget allows it,
+        // lower lanes give up waiting as soon as a stop is requested
+        // Waits are reported as spans of the trace unless it is 0
+        private int write(int lane, long control, long trace) throws InterruptedException {
+            SerialThread thread = mSerialThread;
+            if(thread == null) return FAILED;
+
+            // With acknowledgements, motion waits for room in the window, a stop goes through
+            long delay;
+            long start = (trace != 0 ? System.nanoTime() : 0);
+            if(lane == LANE_MOTION) {
+                while((delay = mAckWindow.getRoomDelay()) > 0) {
+                    if(mStopRequested) return PREEMPTED;
+                    LockSupport.parkNanos(this, delay);
+                    if(Thread.interrupted()) throw new InterruptedException();
+                }
+                if(trace != 0) start = span(trace, Trace.SPAN_WINDOW, start);
+            }
+
+            int sequence;
+            synchronized(SerialHandler.this) {
+                mLaneCommands.reset();
+                if(lane == LANE_HOUSEKEEPING) mProtocol.encodeBatteryRequest(mLaneCommands);
+                else mProtocol.encodeControl(mLaneCommands, ControlMailbox.left(control), ControlMailbox.right(control));
+                sequence = mProtocol.getLastSequence();
+            }
+
+            while((delay = mPacer.tryAcquire(mLaneCommands.getLength())) > 0) {
+                if(lane != LANE_STOP && mStopRequested) return PREEMPTED;
+                LockSupport.parkNanos(this, delay);
+                if(Thread.interrupted()) throw new InterruptedException();
+            }
+            if(trace != 0) start = span(trace, Trace.SPAN_PACE, start);
+
+            synchronized(SerialHandler.this) {
+                if(mClosed) throw new InterruptedException();   // The final stop is already written
+                boolean success = thread.send(mLaneCommands);
+                if(trace != 0) span(trace, Trace.SPAN_SEND, start);
+                if(lane != LANE_HOUSEKEEPING) {
+                    mLastControl = (success ? control : ControlMailbox.EMPTY);
+                    if(success && sequence >= 0) {
+                        mSentTraces[sequence & 0xFF] = trace;   // Published to the reader by the window lock
+                        mAckWindow.onSent(sequence);
+                    }
+                }
+                return (success ? WRITTEN : FAILED);
+            }
+        }
+
+        // Report a span from start to now, return now
+        private long span(long trace, int span, long start) {
+            long now = System.nanoTime();
+            Trace.span(trace, span, start, now);
+            return now;
+        }
+    }
+
+    /**
+     * Return true if the motors are running or were recently
+     */
+    private boolean isDriving() {
+        long control = mLastControl;
+        if(control != ControlMailbox.EMPTY && control != STOPPED) return true;
+        return System.currentTimeMillis() - mMotionTime < DRIVING_HOLD;
+    }
+
+    /**
+     * Get the battery polling interval for the current state
+     */
+    private long getStatusPollInterval() {
+        int battery = mStatus.getBattery();
+        if(isDriving() || (battery >= 0 && battery <= LOW_BATTERY)) return STATUS_POLL_FAST;
+        return STATUS_POLL_SLOW;
+    }
+
+    /**
+     * Thread requesting the battery level periodically to refresh the status
+     */
+    private class StatusPollerThread extends Thread {
+
+        public void run() {
+            // The battery level is requested on connection
+            long last = System.currentTimeMillis();
+            while(true) {
+                long remaining = last + getStatusPollInterval() - System.currentTimeMillis();
+                if(remaining > 0) {
+                    // Woken up early when driving starts
+                    LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(remaining));
+                    if(Thread.interrupted()) return;
+                    continue;
+                }
+
+                if(mConnected) queueBatteryRequest();
+                last = System.currentTimeMillis();
+            }
+        }
+    }
+
+    /**
+     * Thread connecting in background, first if the owner did not, then whenever the link is lost,
+     * so senders never block on it
+     */
+    private class SupervisorThread extends Thread {
+
+        public void run() {
+            Backoff backoff = new Backoff(RECONNECT_MIN_DELAY, RECONNECT_MAX_DELAY);
+            boolean initial = !mConnected;  // The first attempt does not wait
+            try {
+                while(true) {
+                    synchronized(mLinkLock) {
+                        while(mConnected) mLinkLock.wait();
+                    }
+
+                    if(!initial) {
+                        long delay = backoff.next();
+                        Log.d(TAG, "Reconnecting in " + delay + " ms");
+                        Thread.sleep(delay);
+                    }
+
+                    try {
+                        if(!initial) mMetrics.mReconnects.incrementAndGet();
+                        initial = false;
+                        connect();
+                        backoff.reset();
+                        Log.d(TAG, "Connected to device");
+                    }
+                    catch(IOException e) {
+                        Log.w(TAG, "Unable to connect to device: " + e.getMessage());
+                    }
+                }
+            } catch(InterruptedException e) {
+                // Closed
+            }
+        }
+    }
+
+    /**
+     * Thread handling the transport streams
+     */
+    private class SerialThread extends Thread {
+        private InputStream mInStream;
+        private OutputStream mOutStream;
+
+        public SerialThread(InputStream in, OutputStream out) {
+            mInStream = in;
+            mOutStream = out;
+        }
+
+        // Reception loop
+        public void run() {
+            if(mInStream == null) return;
+            try {
+                // Decode lines and binary frames from serial
+                FrameDecoder decoder = new FrameDecoder(RECEIVE_BUFFER_SIZE, new FrameDecoder.Listener() {
+                    @Override
+                    public void onCommand(char command, int value) {
+                        try {
+                            process(command, value);
+                        }
+                        catch(Exception e) {
+                            e.printStackTrace();
+                        }
+                    }
+                });
+
+                while(decoder.readFrom(mInStream) >= 0);
+            } catch (IOException e) {
+                Log.d(TAG, "Receiving failed: " + e.getMessage());
+            }
+
+            linkLost(this);
+        }
+
+        // Process received commands
+        private void process(char cmd, int value) {
+            Journal journal = mJournal;
+            if(journal != null) journal.recordFrame(mJournalSource, cmd, value);
+
+            switch (cmd) {
+                case 'B':
+                    mStatus = mStatus.withBattery(value);
+                    mTelemetry.publish(cmd, value);
+                    mListener.onBattery(value);
+                    break;
+
+                case 'P':
+                    // Protocol negotiation answer
+                    mDeviceVersion = value;
+                    if(mNegotiation != null) mNegotiation.countDown();
+                    break;
+
+                case 'E':
+                    // Error, answer to negotiation on old firmware, or rejected frame
+                    if(mNegotiation != null) mNegotiation.countDown();
+                    if(mAckWindow.isEnabled()) mAckWindow.onError(value);
+                    break;
+
+                case 'A':
+                    // Acknowledged commit, there may be room for the next one
+                    long rtt = mAckWindow.onAck(value);
+                    if(rtt >= 0) {
+                        mMetrics.mRtt.record(rtt);
+                        long trace = mSentTraces[value & 0xFF];
+                        if(trace != 0) {
+                            long now = System.nanoTime();
+                            Trace.span(trace, Trace.SPAN_ACK, now - rtt, now);
+                        }
+                        LockSupport.unpark(mWriterThread);
+                    }
+                    break;
+
+                default:
+                    // Other frames, like sensor data, are only streamed to telemetry subscribers
+                    mTelemetry.publish(cmd, value);
+                    break;
+            }
+        }
+        
+        // Write commands on serial in a single write, paced to the link throughput
+        public boolean write(CommandBuffer commands) {
+            try {
+                mPacer.acquire(commands.getLength());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            }
+
+            return send(commands);
+        }
+
+        // Write commands on serial in a single write, the caller already paced them
+        boolean send(CommandBuffer commands) {
+            try {
+                if(mOutStream != null)
+                    mOutStream.write(commands.getBuffer(), 0, commands.getLength());
+            } catch (IOException e) {
+                Log.d(TAG, "Sending failed: " + e.getMessage());
+                mMetrics.mWriteFailures.incrementAndGet();
+                linkLost(this);
+                return false;
+            }
+
+            return true;
+        }
+    }
+}
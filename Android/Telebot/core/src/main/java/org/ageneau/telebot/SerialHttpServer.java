@@ -0,0 +1,473 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.json.JSONArray;
+import org.json.JSONException;
+import org.json.JSONObject;
+
+/**
+ * Specialized HTTP serial to handle control requests
+ * Several robots can be registered, routes without a robot identifier target the default one
+ */
+public class SerialHttpServer extends HttpServer {
+
+    private static final String TAG = "SerialHttpServer";
+
+    public static final String DEFAULT_ROBOT = "default";
+
+    // Route targets
+    private static final int ROUTE_CONTROL = 0;
+    private static final int ROUTE_CONTROL_WS = 1;
+    private static final int ROUTE_STATUS = 2;
+    private static final int ROUTE_TELEMETRY = 3;
+    private static final int ROUTE_METRICS = 4;
+    private static final int ROUTE_ROBOTS = 5;
+    private static final int ROUTE_TRAJECTORY = 6;
+
+    private static final Router ROUTER = new Router()
+            .add("/", ROUTE_CONTROL)
+            .add("/control", ROUTE_CONTROL)
+            .add("/control/ws", ROUTE_CONTROL_WS)
+            .add("/control/trajectory", ROUTE_TRAJECTORY)
+            .add("/status", ROUTE_STATUS)
+            .add("/telemetry", ROUTE_TELEMETRY)
+            .add("/metrics", ROUTE_METRICS)
+            .add("/robots", ROUTE_ROBOTS)
+            .add("/robots/{id}/control", ROUTE_CONTROL)
+            .add("/robots/{id}/control/ws", ROUTE_CONTROL_WS)
+            .add("/robots/{id}/control/trajectory", ROUTE_TRAJECTORY)
+            .add("/robots/{id}/status", ROUTE_STATUS)
+            .add("/robots/{id}/telemetry", ROUTE_TELEMETRY);
+
+    private static final long TELEMETRY_KEEP_ALIVE = 15000;    // ms
+    private static final int TELEMETRY_BATCH_SIZE = 1024;      // bytes
+    private static final int MAX_CONTROL_WAIT = 60;            // s, for long-polling
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final byte[] EVENT_ID = "id: ".getBytes(ASCII);
+    private static final byte[] HEX_DIGITS = "0123456789abcdef".getBytes(ASCII);
+    private static final byte[] EVENT_COMMAND = "\ndata: {\"command\":\"".getBytes(ASCII);
+    private static final byte[] EVENT_VALUE = "\",\"value\":".getBytes(ASCII);
+    private static final byte[] EVENT_TIME = ",\"time\":".getBytes(ASCII);
+    private static final byte[] EVENT_END = "}\n\n".getBytes(ASCII);
+    private static final byte[] EVENT_KEEP_ALIVE = ":\n\n".getBytes(ASCII);
+
+    private final ConcurrentHashMap<String, Robot> mRobots = new ConcurrentHashMap<>();
+    private volatile Robot mDefaultRobot;
+    private volatile Journal mJournal;
+
+    /**
+     * Create server for specified port, robots are added with addRobot()
+     */
+    public SerialHttpServer(int port) {
+        super(port);
+    }
+
+    /**
+     * Create server for specified port and serial handler, registered as the default robot
+     */
+    public SerialHttpServer(int port, SerialHandler handler) {
+        this(port);
+        addRobot(DEFAULT_ROBOT, handler);
+    }
+
+    /**
+     * Register a robot, the first one becomes the default
+     * The identifier may contain letters, digits, '-' and '_'
+     */
+    public Robot addRobot(String id, SerialHandler handler) {
+        if(!id.matches("[A-Za-z0-9_-]+"))
+            throw new IllegalArgumentException("Invalid robot identifier: " + id);
+
+        synchronized(mRobots) {
+            if(mRobots.containsKey(id))
+                throw new IllegalArgumentException("Robot already registered: " + id);
+
+            handler.setMetrics(getMetrics());
+            Robot robot = new Robot(id, mRobots.size(), handler);
+            if(mJournal != null) robot.setJournal(mJournal);
+            mRobots.put(id, robot);
+
+            if(mDefaultRobot == null) mDefaultRobot = robot;
+            return robot;
+        }
+    }
+
+    /**
+     * Get a registered robot, or null if unknown
+     */
+    public Robot getRobot(String id) {
+        return mRobots.get(id);
+    }
+
+    /**
+     * Record control updates and received frames of all robots, robots are identified by index
+     * The journal is closed with the server
+     */
+    public void setJournal(Journal journal) {
+        synchronized(mRobots) {
+            mJournal = journal;
+            for(Robot robot : mRobots.values())
+                robot.setJournal(journal);
+        }
+    }
+
+    /**
+     * Start the server
+     */
+    @Override
+    public void start()
+    {
+        super.start();
+    }
+
+    /**
+     * Stop the server, closing all robots
+     */
+    @Override
+    public void stop()
+    {
+        super.stop();
+        for(Robot robot : mRobots.values())
+            robot.close();
+        if(mJournal != null)
+            mJournal.close();
+    }
+
+    /**
+     * Get the robot targeted by a route match, or null if unknown
+     */
+    private Robot getRobot(Router.Match match) {
+        String id = match.getParam();
+        return (id != null ? mRobots.get(id) : mDefaultRobot);
+    }
+
+    /**
+     * Process a control request on raw bytes, without building JSON objects
+     * Bodies the decoder does not recognize fall back to the generic JSON path
+     */
+    @Override
+    HttpResponse process(HttpRequest request) throws Exception {
+        String method = request.getMethod();
+        Router.Match match = ROUTER.match(request.getRoute());
+        if(match == null) return null;
+
+        switch(match.getTarget()) {
+            case ROUTE_CONTROL: {
+                Robot robot = getRobot(match);
+                if(robot == null) return null;
+
+                if(method.equals("POST") && request.getBodyLength() > 0) {
+                    long control = ControlBodyDecoder.decode(request.getBodyBuffer(),
+                            request.getBodyOffset(), request.getBodyLength());
+                    if(control == ControlMailbox.EMPTY)
+                        return super.process(request);
+
+                    robot.setControl(ControlMailbox.left(control), ControlMailbox.right(control));
+                    return controlResponse(robot);
+                }
+
+                if(method.equals("GET"))
+                    return getControl(robot, request);
+
+                return controlResponse(robot);
+            }
+
+            case ROUTE_TELEMETRY: {
+                Robot robot = getRobot(match);
+                if(robot == null || !method.equals("GET")) return null;
+                return telemetryStream(robot, request.getHeader("Last-Event-ID"));
+            }
+
+            case ROUTE_TRAJECTORY: {
+                Robot robot = getRobot(match);
+                if(robot == null || !method.equals("POST")) return null;
+                return playTrajectory(robot, request.getContent());
+            }
+
+            default:
+                return super.process(request);
+        }
+    }
+
+    /**
+     * Process a control request
+     */
+    @Override
+    public JSONObject process(String method, String route, JSONObject content) throws Exception {
+        Router.Match match = ROUTER.match(route);
+        if(match == null) return null;
+
+        switch(match.getTarget()) {
+            case ROUTE_CONTROL:
+            case ROUTE_CONTROL_WS: {
+                Robot robot = getRobot(match);
+                if(robot == null) return null;
+
+                if(method.equals("POST") && content != null) {
+                    robot.setControl(content.getInt("left"), content.getInt("right"));
+                }
+
+                ControlState state = robot.getState();
+                JSONObject response = new JSONObject();
+                response.put("left", state.getLeft());
+                response.put("right", state.getRight());
+                if(!robot.getHandler().isConnected()) response.put("connecting", true);
+                return response;
+            }
+
+            case ROUTE_STATUS: {
+                Robot robot = getRobot(match);
+                if(robot == null || !method.equals("GET")) return null;
+                return getStatus(robot);
+            }
+
+            case ROUTE_METRICS:
+                if(!method.equals("GET")) return null;
+                return getMetrics().toJson();
+
+            case ROUTE_ROBOTS: {
+                if(!method.equals("GET")) return null;
+                JSONArray robots = new JSONArray();
+                for(Robot robot : mRobots.values()) {
+                    JSONObject object = getStatus(robot);
+                    object.put("id", robot.getId());
+                    robots.put(object);
+                }
+                JSONObject response = new JSONObject();
+                response.put("robots", robots);
+                if(mDefaultRobot != null) response.put("default", mDefaultRobot.getId());
+                return response;
+            }
+
+            default:
+                return null;
+        }
+    }
+
+    /**
+     * Accept control streams over WebSocket
+     */
+    @Override
+    public boolean acceptsWebSocket(String route) {
+        Router.Match match = ROUTER.match(route);
+        return match != null && match.getTarget() == ROUTE_CONTROL_WS && getRobot(match) != null;
+    }
+
+    /**
+     * Process a compact control message, two signed bytes for left and right
+     * The acknowledgement has the same format and contains the current controls
+     */
+    @Override
+    public byte[] processBinary(String route, byte[] payload, int length) throws Exception {
+        Router.Match match = ROUTER.match(route);
+        if(match == null || match.getTarget() != ROUTE_CONTROL_WS) return null;
+
+        Robot robot = getRobot(match);
+        if(robot == null) return null;
+
+        if(length >= 2) {
+            robot.setControl(payload[0], payload[1]);
+        }
+
+        ControlState state = robot.getState();
+        return new byte[] { (byte) state.getLeft(), (byte) state.getRight() };
+    }
+
+    /**
+     * Get the response to a control update, 202 with "connecting" while the link is not up
+     * Controls are kept and sent once connected
+     */
+    private static HttpResponse controlResponse(Robot robot) {
+        return stateResponse(robot, robot.getState(), "202 Accepted");
+    }
+
+    /**
+     * Get the response with the controls of the state, with "connecting" and the status while the link is not up
+     */
+    private static HttpResponse stateResponse(Robot robot, ControlState state, String status) {
+        if(robot.getHandler().isConnected()) return state.getResponse();
+
+        byte[] body = ("{\"left\":" + state.getLeft() + ",\"right\":" + state.getRight()
+                + ",\"connecting\":true}").getBytes(ASCII);
+        return new HttpResponse(status)
+                .addHeader(HttpResponse.header("ETag", state.getETag()))
+                .setBody(HttpResponse.CONTENT_TYPE_JSON, body, body.length);
+    }
+
+    /**
+     * Validate a trajectory and play it, replacing the current one
+     * Answers 202 since playback goes on after the response, or 400 with the error for invalid setpoints
+     */
+    private static HttpResponse playTrajectory(Robot robot, JSONObject content) throws JSONException {
+        Trajectory trajectory;
+        try {
+            trajectory = Trajectory.fromJson(content);
+        } catch(IllegalArgumentException e) {
+            JSONObject error = new JSONObject();
+            error.put("error", e.getMessage());
+            byte[] body = error.toString().getBytes(ASCII);
+            return new HttpResponse("400 Bad Request")
+                    .setBody(HttpResponse.CONTENT_TYPE_JSON, body, body.length);
+        }
+
+        robot.play(trajectory);
+
+        JSONObject response = new JSONObject();
+        response.put("points", trajectory.size());
+        response.put("duration", trajectory.getDuration());
+        if(!robot.getHandler().isConnected()) response.put("connecting", true);
+        byte[] body = response.toString().getBytes(ASCII);
+        return new HttpResponse("202 Accepted")
+                .setBody(HttpResponse.CONTENT_TYPE_JSON, body, body.length);
+    }
+
+    /**
+     * Get the status of a robot, served from the cached snapshot so the link is not used
+     */
+    private static JSONObject getStatus(Robot robot) throws JSONException {
+        SerialHandler handler = robot.getHandler();
+        JSONObject response = handler.getStatus().toJson();
+        response.put("connected", handler.isConnected());
+        response.put("trajectory", robot.isPlaying());
+        response.put("link", handler.getLinkStatus());
+        return response;
+    }
+
+    /**
+     * Answer a control state request, conditional with If-None-Match, with "connecting" while the link is not up
+     * With a matching tag and ?wait=N, wait up to N s for a change before answering 304
+     */
+    private HttpResponse getControl(final Robot robot, HttpRequest request) {
+        final ControlState state = robot.getState();
+        if(!request.headerEquals("If-None-Match", state.getETag()))
+            return stateResponse(robot, state, "200 OK");
+
+        int wait = 0;
+        String param = request.getParameter("wait");
+        if(param != null) {
+            try {
+                wait = Math.min(Integer.parseInt(param), MAX_CONTROL_WAIT);
+            } catch(NumberFormatException e) {
+                return HttpResponse.BAD_REQUEST;
+            }
+        }
+
+        if(wait <= 0)
+            return state.getNotModified();
+
+        final long timeout = wait * 1000L;
+        return openDeferred(new HttpResponse.StreamHandler() {
+            @Override
+            public void handle(InputStream in, OutputStream out) throws IOException {
+                ControlState current;
+                try {
+                    current = robot.awaitChange(state, timeout);
+                } catch(InterruptedException e) {
+                    return;
+                }
+
+                HttpResponse response = (current != state ? stateResponse(robot, current, "200 OK") : current.getNotModified());
+                out.write(response.encode(false));
+                out.flush();
+            }
+        });
+    }
+
+    /**
+     * Stream frames received from the device as Server-Sent Events, like
+     * id: 42
+     * data: {"command":"B","value":87,"time":1500000000000}
+     * Frames are batched per write, a slow client skips frames instead of delaying the reader
+     */
+    private HttpResponse telemetryStream(final Robot robot, String lastEventId) {
+        long lastSequence = -1;
+        if(lastEventId != null) {
+            try {
+                lastSequence = Long.parseLong(lastEventId.trim());
+            } catch(NumberFormatException e) {
+                // Start with the next frame
+            }
+        }
+
+        final long start = lastSequence;
+        return openEventStream(new HttpResponse.StreamHandler() {
+            @Override
+            public void handle(InputStream in, OutputStream out) throws IOException {
+                TelemetryRing.Cursor cursor = robot.getHandler().getTelemetry().subscribe(start);
+                OutputBuffer buffer = new OutputBuffer(TELEMETRY_BATCH_SIZE);
+                try {
+                    while(true) {
+                        buffer.reset();
+                        if(cursor.next(TELEMETRY_KEEP_ALIVE)) {
+                            do {
+                                writeEvent(buffer, cursor);
+                            } while(buffer.getLength() < TELEMETRY_BATCH_SIZE && cursor.next(0));
+                        }
+                        else {
+                            buffer.write(EVENT_KEEP_ALIVE, 0, EVENT_KEEP_ALIVE.length);
+                        }
+
+                        out.write(buffer.getBuffer(), 0, buffer.getLength());
+                        out.flush();
+                    }
+                } catch(InterruptedException e) {
+                    // Closed
+                } finally {
+                    cursor.close();
+                    if(cursor.getDropped() > 0)
+                        Log.d(TAG, "Telemetry subscriber dropped " + cursor.getDropped() + " frames");
+                }
+            }
+        });
+    }
+
+    private static void writeEvent(OutputBuffer out, TelemetryRing.Cursor cursor) {
+        out.write(EVENT_ID, 0, EVENT_ID.length);
+        out.writeDecimal(cursor.getSequence());
+        out.write(EVENT_COMMAND, 0, EVENT_COMMAND.length);
+        writeJsonChar(out, cursor.getCommand());
+        out.write(EVENT_VALUE, 0, EVENT_VALUE.length);
+        out.writeDecimal(cursor.getValue());
+        out.write(EVENT_TIME, 0, EVENT_TIME.length);
+        out.writeDecimal(cursor.getTime());
+        out.write(EVENT_END, 0, EVENT_END.length);
+    }
+
+    // Write a character from the link inside a JSON string, escaping quotes, backslashes,
+    // control and non-ASCII characters, so the event stays valid JSON on a single line
+    private static void writeJsonChar(OutputBuffer out, char c) {
+        if(c >= 0x20 && c < 0x7F) {
+            if(c == '"' || c == '\\') out.write('\\');
+            out.write(c);
+            return;
+        }
+        out.write('\\');
+        out.write('u');
+        for(int shift = 12; shift >= 0; shift-= 4)
+            out.write(HEX_DIGITS[(c >> shift) & 0xF]);
+    }
+}
@@ -0,0 +1,47 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+/**
+ * Encoding of commands sent to the device
+ */
+abstract class SerialProtocol {
+
+    /**
+     * Encode motor controls followed by a commit
+     */
+    abstract void encodeControl(CommandBuffer buffer, int left, int right);
+
+    /**
+     * Encode a battery status request
+     */
+    abstract void encodeBatteryRequest(CommandBuffer buffer);
+
+    /**
+     * Return true if the device answers with binary frames
+     */
+    abstract boolean isBinary();
+
+    /**
+     * Get the sequence number of the last encoded command, or -1 if commands have none
+     */
+    int getLastSequence() {
+        return -1;
+    }
+}
@@ -0,0 +1,54 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Byte stream link to the device
+ */
+public interface SerialTransport {
+
+    /**
+     * Open the link, blocking until connected
+     */
+    void connect() throws IOException;
+
+    /**
+     * Close the link, does nothing if not connected
+     */
+    void close();
+
+    /**
+     * Get the input stream of the open link
+     */
+    InputStream getInputStream() throws IOException;
+
+    /**
+     * Get the output stream of the open link
+     */
+    OutputStream getOutputStream() throws IOException;
+
+    /**
+     * Get the address identifying the device, or null if unknown
+     */
+    String getAddress();
+}
@@ -0,0 +1,87 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+
+/**
+ * TCP link, for WiFi-to-serial bridges or a simulated device
+ */
+public class TcpTransport implements SerialTransport {
+
+    private static final int CONNECT_TIMEOUT = 5000;   // ms
+
+    private final String mHost;
+    private final int mPort;
+    private Socket mSocket;
+
+    /**
+     * Create transport for specified host and port
+     */
+    public TcpTransport(String host, int port) {
+        mHost = host;
+        mPort = port;
+    }
+
+    @Override
+    public void connect() throws IOException {
+        Socket socket = new Socket();
+        try {
+            socket.setTcpNoDelay(true);
+            socket.connect(new InetSocketAddress(mHost, mPort), CONNECT_TIMEOUT);
+        } catch(IOException e) {
+            socket.close();
+            throw e;
+        }
+        mSocket = socket;
+    }
+
+    @Override
+    public void close() {
+        try {
+            if(mSocket != null)
+                mSocket.close();
+        } catch(IOException e) {
+
+        }
+
+        mSocket = null;
+    }
+
+    @Override
+    public InputStream getInputStream() throws IOException {
+        if(mSocket == null) throw new IOException("Not connected");
+        return mSocket.getInputStream();
+    }
+
+    @Override
+    public OutputStream getOutputStream() throws IOException {
+        if(mSocket == null) throw new IOException("Not connected");
+        return mSocket.getOutputStream();
+    }
+
+    @Override
+    public String getAddress() {
+        return mHost + ":" + mPort;
+    }
+}
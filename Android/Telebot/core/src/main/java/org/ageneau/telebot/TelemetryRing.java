@@ -0,0 +1,199 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import java.util.Arrays;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Fixed-size lock-free ring buffer of frames received from the device
+ * There is a single producer, the serial reader, which never waits: subscribers
+ * that fall more than the capacity behind skip the overwritten frames
+ */
+class TelemetryRing {
+
+    private final int mCapacity;
+    private final int mMask;
+
+    // Slot sequence is set to -1 while the slot is written, like a sequence lock
+    private final AtomicLongArray mSequences;
+    private final AtomicLongArray mFrames;      // Command in the high word, value in the low word
+    private final AtomicLongArray mTimes;       // Reception time in ms since epoch
+    private final AtomicLong mHead = new AtomicLong();  // Sequence of the next frame
+
+    // Subscriber threads, the array is replaced on change so publishing iterates without allocating
+    private final Object mWaitersLock = new Object();
+    private volatile Thread[] mWaiters = new Thread[0];
+
+    /**
+     * Create ring buffer, capacity must be a power of two
+     */
+    TelemetryRing(int capacity) {
+        if(capacity <= 0 || (capacity & (capacity - 1)) != 0)
+            throw new IllegalArgumentException("Capacity must be a power of two");
+        mCapacity = capacity;
+        mMask = capacity - 1;
+        mSequences = new AtomicLongArray(capacity);
+        mFrames = new AtomicLongArray(capacity);
+        mTimes = new AtomicLongArray(capacity);
+        for(int i = 0; i < capacity; ++i)
+            mSequences.set(i, -1);
+    }
+
+    /**
+     * Append a frame, must be called from a single producer thread
+     */
+    void publish(char command, int value) {
+        long sequence = mHead.get();
+        int i = (int) sequence & mMask;
+        mSequences.set(i, -1);
+        mFrames.set(i, ((long) command << 32) | (value & 0xFFFFFFFFL));
+        mTimes.set(i, System.currentTimeMillis());
+        mSequences.set(i, sequence);
+        mHead.set(sequence + 1);
+
+        Thread[] waiters = mWaiters;
+        for(int w = 0; w < waiters.length; ++w)
+            LockSupport.unpark(waiters[w]);
+    }
+
+    private void addWaiter(Thread thread) {
+        synchronized(mWaitersLock) {
+            Thread[] waiters = Arrays.copyOf(mWaiters, mWaiters.length + 1);
+            waiters[waiters.length - 1] = thread;
+            mWaiters = waiters;
+        }
+    }
+
+    private void removeWaiter(Thread thread) {
+        synchronized(mWaitersLock) {
+            Thread[] waiters = mWaiters;
+            for(int w = 0; w < waiters.length; ++w) {
+                if(waiters[w] == thread) {
+                    Thread[] remaining = new Thread[waiters.length - 1];
+                    System.arraycopy(waiters, 0, remaining, 0, w);
+                    System.arraycopy(waiters, w + 1, remaining, w, waiters.length - w - 1);
+                    mWaiters = remaining;
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Subscribe the calling thread, starting after the specified sequence if still
+     * in the buffer, or with the next frame otherwise, like for a negative sequence
+     */
+    Cursor subscribe(long lastSequence) {
+        long head = mHead.get();
+        long next = head;
+        if(lastSequence >= 0 && lastSequence < head && head - lastSequence <= mCapacity)
+            next = lastSequence + 1;
+        return new Cursor(next);
+    }
+
+    /**
+     * Reading position of a subscriber, bound to the subscribing thread
+     */
+    class Cursor {
+        private final Thread mThread = Thread.currentThread();
+        private long mNext;
+        private long mDropped;
+
+        // Current frame
+        private long mSequence;
+        private char mCommand;
+        private int mValue;
+        private long mTime;
+
+        private Cursor(long next) {
+            mNext = next;
+            addWaiter(mThread);
+        }
+
+        /**
+         * Move to the next frame, waiting at most timeout ms, return false on timeout
+         */
+        boolean next(long timeout) throws InterruptedException {
+            long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeout);
+            while(true) {
+                long head = mHead.get();
+                if(mNext < head) {
+                    // Skip frames overwritten by the producer
+                    if(head - mNext > mCapacity) {
+                        mDropped+= head - mCapacity - mNext;
+                        mNext = head - mCapacity;
+                    }
+
+                    int i = (int) mNext & mMask;
+                    long sequence = mSequences.get(i);
+                    long frame = mFrames.get(i);
+                    long time = mTimes.get(i);
+                    if(sequence != mNext || mSequences.get(i) != sequence)
+                        continue;   // Overwritten while reading
+
+                    mSequence = sequence;
+                    mCommand = (char) (frame >>> 32);
+                    mValue = (int) frame;
+                    mTime = time;
+                    ++mNext;
+                    return true;
+                }
+
+                long remaining = deadline - System.nanoTime();
+                if(remaining <= 0) return false;
+                LockSupport.parkNanos(this, remaining);
+                if(Thread.interrupted()) throw new InterruptedException();
+            }
+        }
+
+        long getSequence() {
+            return mSequence;
+        }
+
+        char getCommand() {
+            return mCommand;
+        }
+
+        int getValue() {
+            return mValue;
+        }
+
+        long getTime() {
+            return mTime;
+        }
+
+        /**
+         * Get the number of frames skipped because the subscriber was too slow
+         */
+        long getDropped() {
+            return mDropped;
+        }
+
+        /**
+         * Unsubscribe
+         */
+        void close() {
+            removeWaiter(mThread);
+        }
+    }
+}
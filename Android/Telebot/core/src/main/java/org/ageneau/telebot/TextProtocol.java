@@ -0,0 +1,50 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+/**
+ * Original line-based protocol, understood by every firmware version
+ * Commands are a letter optionally followed by a space and a decimal value
+ */
+class TextProtocol extends SerialProtocol {
+
+    @Override
+    void encodeControl(CommandBuffer buffer, int left, int right) {
+        buffer.appendLine('L', left);   // left
+        buffer.appendLine('R', right);  // right
+        buffer.appendLine('C');         // commit
+    }
+
+    @Override
+    void encodeBatteryRequest(CommandBuffer buffer) {
+        buffer.appendLine('B');
+    }
+
+    /**
+     * Encode a request to switch to binary framing, old firmware answers "E"
+     */
+    void encodeNegotiation(CommandBuffer buffer, int version) {
+        buffer.appendLine('P', version);
+    }
+
+    @Override
+    boolean isBinary() {
+        return false;
+    }
+}
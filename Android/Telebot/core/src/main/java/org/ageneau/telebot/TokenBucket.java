@@ -0,0 +1,97 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+/**
+ * Token bucket pacing writes to the throughput of a link
+ * Tokens are bytes, the capacity is the burst the receiver can buffer
+ */
+class TokenBucket {
+
+    private double mRate;           // tokens per second
+    private final double mCapacity;
+    private double mTokens;
+    private long mLastRefill;       // ns
+
+    /**
+     * Create a full bucket
+     */
+    TokenBucket(double rate, int capacity) {
+        mRate = rate;
+        mCapacity = capacity;
+        mTokens = capacity;
+        mLastRefill = System.nanoTime();
+    }
+
+    /**
+     * Create a bucket for a serial link with 8N1 framing
+     */
+    static TokenBucket forBaudRate(int baudRate, int bufferSize) {
+        return new TokenBucket(baudRate / 10.0, bufferSize);
+    }
+
+    /**
+     * Change the refill rate
+     */
+    synchronized void setRate(double rate) {
+        refill();
+        mRate = rate;
+    }
+
+    /**
+     * Get the refill rate in tokens per second
+     */
+    synchronized double getRate() {
+        return mRate;
+    }
+
+    /**
+     * Wait until enough tokens are available and consume them
+     * Requests larger than the capacity wait for a full bucket and overdraw it
+     */
+    synchronized void acquire(int tokens) throws InterruptedException {
+        double needed = Math.min(tokens, mCapacity);
+        refill();
+        while(mTokens < needed) {
+            long wait = (long) Math.ceil((needed - mTokens) * 1e9 / mRate);
+            wait(wait / 1000000L, (int) (wait % 1000000L));
+            refill();
+        }
+        mTokens-= tokens;
+    }
+
+    /**
+     * Consume tokens if enough are available, otherwise return the time to wait for them in ns
+     * Requests larger than the capacity wait for a full bucket and overdraw it
+     */
+    synchronized long tryAcquire(int tokens) {
+        double needed = Math.min(tokens, mCapacity);
+        refill();
+        if(mTokens < needed)
+            return Math.max((long) Math.ceil((needed - mTokens) * 1e9 / mRate), 1);
+        mTokens-= tokens;
+        return 0;
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        mTokens = Math.min(mCapacity, mTokens + (now - mLastRefill) * mRate / 1e9);
+        mLastRefill = now;
+    }
+}
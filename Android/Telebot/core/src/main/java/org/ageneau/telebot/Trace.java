@@ -0,0 +1,113 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Tracing facade for the critical path of commands, from HTTP parsing to device acknowledgement
+ * Each request or WebSocket message gets a trace ID, carried with its controls to the serial writer,
+ * and stage timings are reported as spans to the sink. Tracing is disabled until a sink is set.
+ *
+ * Controls replaced in the mailbox before being written only have their server spans.
+ */
+public final class Trace {
+
+    public static final int SPAN_PARSE = 0;     // Request received to parsed
+    public static final int SPAN_PROCESS = 1;   // Request parsed to processed, or WebSocket message processed
+    public static final int SPAN_QUEUE = 2;     // Controls set to picked up by the writer, including link down
+    public static final int SPAN_WINDOW = 3;    // Waiting for room in the acknowledgement window
+    public static final int SPAN_PACE = 4;      // Waiting for the link budget
+    public static final int SPAN_SEND = 5;      // Written to the transport
+    public static final int SPAN_ACK = 6;       // Written to acknowledged by the device
+
+    private static final String[] NAMES = {
+            "parse", "process", "queue", "window", "pace", "send", "ack"
+    };
+
+    /**
+     * Destination of spans, called on the thread ending the span so it must be quick
+     */
+    public interface Sink {
+        /**
+         * Report a span of the trace, start and end are System.nanoTime() values
+         */
+        void span(long trace, int span, long start, long end);
+    }
+
+    private static volatile Sink sSink;
+    private static final AtomicLong sNextId = new AtomicLong();
+
+    // Trace of the request being processed on the thread
+    private static final ThreadLocal<long[]> sCurrent = new ThreadLocal<long[]>() {
+        @Override
+        protected long[] initialValue() {
+            return new long[1];
+        }
+    };
+
+    private Trace() {}
+
+    /**
+     * Set the destination of spans, or null to disable tracing
+     */
+    public static void setSink(Sink sink) {
+        sSink = sink;
+    }
+
+    public static boolean isEnabled() {
+        return sSink != null;
+    }
+
+    /**
+     * Get the name of a span type
+     */
+    public static String getName(int span) {
+        return NAMES[span];
+    }
+
+    /**
+     * Start a new trace, return its ID, or 0 if tracing is disabled
+     */
+    static long start() {
+        return (sSink != null ? sNextId.incrementAndGet() : 0);
+    }
+
+    /**
+     * Set the trace of the request processed on the current thread, 0 for none
+     */
+    static void setCurrent(long trace) {
+        if(trace != 0 || sSink != null) sCurrent.get()[0] = trace;
+    }
+
+    /**
+     * Get the trace of the request processed on the current thread, or 0
+     */
+    static long current() {
+        return (sSink != null ? sCurrent.get()[0] : 0);
+    }
+
+    /**
+     * Report a span of the trace, ignored if the trace is 0
+     */
+    static void span(long trace, int span, long start, long end) {
+        Sink sink = sSink;
+        if(sink != null && trace != 0) sink.span(trace, span, start, end);
+    }
+}
@@ -0,0 +1,143 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import java.math.BigInteger;
+import java.util.concurrent.TimeUnit;
+
+import org.json.JSONArray;
+import org.json.JSONObject;
+
+/**
+ * Timed sequence of control setpoints, validated as a whole before playback
+ * Times are relative to the start of playback, and the last setpoint is held once reached
+ */
+public class Trajectory {
+
+    static final int MAX_POINTS = 1000;
+    static final long MAX_DURATION = 60000;     // ms
+    static final int MAX_CONTROL = 100;         // percent
+
+    private final long[] mTimes;                // ns since start
+    private final int[] mLeft, mRight;
+
+    /**
+     * Create trajectory from times in ms and controls in percent
+     * Throws IllegalArgumentException if the setpoints are invalid
+     */
+    public Trajectory(long[] times, int[] left, int[] right) {
+        int count = times.length;
+        if(left.length != count || right.length != count)
+            throw new IllegalArgumentException("Mismatched setpoint arrays");
+        if(count == 0)
+            throw new IllegalArgumentException("No setpoints");
+        if(count > MAX_POINTS)
+            throw new IllegalArgumentException("Too many setpoints, maximum is " + MAX_POINTS);
+
+        mTimes = new long[count];
+        mLeft = left.clone();
+        mRight = right.clone();
+
+        long previous = -1;
+        for(int i = 0; i < count; ++i) {
+            if(times[i] < 0 || times[i] > MAX_DURATION)
+                throw new IllegalArgumentException("Setpoint " + i + ": time out of range");
+            if(times[i] <= previous)
+                throw new IllegalArgumentException("Setpoint " + i + ": time not increasing");
+            if(Math.abs(left[i]) > MAX_CONTROL || Math.abs(right[i]) > MAX_CONTROL)
+                throw new IllegalArgumentException("Setpoint " + i + ": control out of range");
+
+            previous = times[i];
+            mTimes[i] = TimeUnit.MILLISECONDS.toNanos(times[i]);
+        }
+    }
+
+    /**
+     * Parse trajectory from {"points":[{"time":ms,"left":l,"right":r},...]}
+     * Throws IllegalArgumentException if the content is malformed or the setpoints are invalid
+     */
+    public static Trajectory fromJson(JSONObject content) {
+        JSONArray points = (content != null ? content.optJSONArray("points") : null);
+        if(points == null)
+            throw new IllegalArgumentException("Missing points array");
+
+        int count = points.length();
+        if(count > MAX_POINTS)
+            throw new IllegalArgumentException("Too many setpoints, maximum is " + MAX_POINTS);
+
+        long[] times = new long[count];
+        int[] left = new int[count];
+        int[] right = new int[count];
+        for(int i = 0; i < count; ++i) {
+            JSONObject point = points.optJSONObject(i);
+            if(point == null || !isInteger(point.opt("time"), MAX_DURATION)
+                    || !isInteger(point.opt("left"), MAX_CONTROL) || !isInteger(point.opt("right"), MAX_CONTROL))
+                throw new IllegalArgumentException("Setpoint " + i + ": expected integer time, left and right in range");
+
+            // Values are checked against the bounds before narrowing, so they can not wrap
+            times[i] = ((Number) point.opt("time")).longValue();
+            left[i] = ((Number) point.opt("left")).intValue();
+            right[i] = ((Number) point.opt("right")).intValue();
+        }
+
+        return new Trajectory(times, left, right);
+    }
+
+    public int size() {
+        return mTimes.length;
+    }
+
+    /**
+     * Get the time of the setpoint since start, in ns
+     */
+    long getTime(int index) {
+        return mTimes[index];
+    }
+
+    int getLeft(int index) {
+        return mLeft[index];
+    }
+
+    int getRight(int index) {
+        return mRight[index];
+    }
+
+    /**
+     * Get the time of the last setpoint, in ms
+     */
+    public long getDuration() {
+        return TimeUnit.NANOSECONDS.toMillis(mTimes[mTimes.length - 1]);
+    }
+
+    // Integral numbers within [-bound, bound] only, fractional or out of range values are rejected
+    // rather than truncated or wrapped, whatever type the parser chose for them
+    private static boolean isInteger(Object value, long bound) {
+        if(value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte) {
+            long l = ((Number) value).longValue();
+            return l >= -bound && l <= bound;
+        }
+        if(value instanceof BigInteger) {
+            BigInteger b = (BigInteger) value;
+            return b.bitLength() < 64 && Math.abs(b.longValue()) <= bound;
+        }
+        if(!(value instanceof Number)) return false;
+        double d = ((Number) value).doubleValue();
+        return d == Math.rint(d) && Math.abs(d) <= bound;
+    }
+}
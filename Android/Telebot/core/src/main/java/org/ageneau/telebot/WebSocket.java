@@ -0,0 +1,210 @@
+/*
+ * This file is part of Telebot Android app
+ * Copyright (c) 2015-2017 by Paul-Louis Ageneau
+ *
+ * This program is free software: you can redistribute it and/or modify
+ * it under the terms of the GNU General Public License as published by
+ * the Free Software Foundation, either version 3 of the License, or
+ * (at your option) any later version.
+ *
+ * This program is distributed in the hope that it will be useful,
+ * but WITHOUT ANY WARRANTY; without even the implied warranty of
+ * MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ * GNU General Public License for more details.
+ *
+ * You should have received a copy of the GNU General Public License
+ * along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+package org.ageneau.telebot;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+/**
+ * Minimal server side WebSocket (RFC 6455) over blocking streams
+ * Messages must fit in a single frame, which is always the case for control messages
+ */
+class WebSocket {
+
+    static final int OPCODE_TEXT = 0x1;
+    static final int OPCODE_BINARY = 0x2;
+    static final int OPCODE_CLOSE = 0x8;
+    static final int OPCODE_PING = 0x9;
+    static final int OPCODE_PONG = 0xA;
+
+    private static final int MAX_PAYLOAD = 4096;
+    private static final int CLOSE_UNSUPPORTED = 1003;
+    private static final int CLOSE_TOO_BIG = 1009;
+
+    private static final String GUID = "258EAFA5-E914-47DA-95CA-C5AB0DC85B11";
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+    private final InputStream mIn;
+    private final OutputStream mOut;
+    private final byte[] mPayload = new byte[MAX_PAYLOAD];
+    private final byte[] mHeader = new byte[14];
+    private final byte[] mMask = new byte[4];
+    private int mLength;
+
+    WebSocket(InputStream in, OutputStream out) {
+        mIn = in;
+        mOut = out;
+    }
+
+    /**
+     * Compute the Sec-WebSocket-Accept value for a client key
+     */
+    static String acceptKey(String key) {
+        try {
+            MessageDigest sha1 = MessageDigest.getInstance("SHA-1");
+            return base64(sha1.digest((key.trim() + GUID).getBytes(ASCII)));
+        } catch(NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Wait for the next data message and return its opcode, or -1 if the socket is closed
+     * Control frames are answered transparently
+     */
+    int receive() throws IOException {
+        while(true) {
+            int b0 = mIn.read();
+            if(b0 < 0) return -1;
+            int b1 = readByte();
+
+            boolean fin = (b0 & 0x80) != 0;
+            int opcode = b0 & 0x0F;
+            boolean masked = (b1 & 0x80) != 0;
+            long length = b1 & 0x7F;
+            if(length == 126) {
+                length = (readByte() << 8) | readByte();
+            }
+            else if(length == 127) {
+                length = 0;
+                for(int i = 0; i < 8; ++i) length = (length << 8) | readByte();
+            }
+
+            if(length > MAX_PAYLOAD) {
+                close(CLOSE_TOO_BIG);
+                return -1;
+            }
+
+            if(masked) readFully(mMask, 4);
+            mLength = (int) length;
+            readFully(mPayload, mLength);
+            if(masked) {
+                for(int i = 0; i < mLength; ++i)
+                    mPayload[i] ^= mMask[i & 3];
+            }
+
+            switch(opcode) {
+                case OPCODE_TEXT:
+                case OPCODE_BINARY:
+                    if(!fin) {
+                        close(CLOSE_UNSUPPORTED);
+                        return -1;
+                    }
+                    return opcode;
+
+                case OPCODE_PING:
+                    send(OPCODE_PONG, mPayload, 0, mLength);
+                    break;
+
+                case OPCODE_PONG:
+                    break;
+
+                case OPCODE_CLOSE:
+                    send(OPCODE_CLOSE, mPayload, 0, Math.min(mLength, 2));
+                    return -1;
+
+                default:
+                    close(CLOSE_UNSUPPORTED);
+                    return -1;
+            }
+        }
+    }
+
+    /**
+     * Get the payload of the last received message, valid until the next call to receive
+     */
+    byte[] getPayload() {
+        return mPayload;
+    }
+
+    /**
+     * Get the length of the last received message
+     */
+    int getLength() {
+        return mLength;
+    }
+
+    /**
+     * Send a single unmasked frame
+     */
+    void send(int opcode, byte[] payload, int offset, int length) throws IOException {
+        int n = 0;
+        mHeader[n++] = (byte) (0x80 | opcode);
+        if(length < 126) {
+            mHeader[n++] = (byte) length;
+        }
+        else if(length < 65536) {
+            mHeader[n++] = 126;
+            mHeader[n++] = (byte) (length >> 8);
+            mHeader[n++] = (byte) length;
+        }
+        else {
+            mHeader[n++] = 127;
+            for(int i = 7; i >= 0; --i)
+                mHeader[n++] = (byte) (i < 4 ? length >> (8*i) : 0);
+        }
+
+        mOut.write(mHeader, 0, n);
+        if(length > 0) mOut.write(payload, offset, length);
+        mOut.flush();
+    }
+
+    /**
+     * Send a close frame with specified status code
+     */
+    void close(int code) throws IOException {
+        byte[] b = { (byte) (code >> 8), (byte) code };
+        send(OPCODE_CLOSE, b, 0, 2);
+    }
+
+    private int readByte() throws IOException {
+        int b = mIn.read();
+        if(b < 0) throw new EOFException();
+        return b;
+    }
+
+    private void readFully(byte[] buffer, int length) throws IOException {
+        int offset = 0;
+        while(offset < length) {
+            int n = mIn.read(buffer, offset, length - offset);
+            if(n < 0) throw new EOFException();
+            offset+= n;
+        }
+    }
+
+    private static String base64(byte[] data) {
+        StringBuilder sb = new StringBuilder((data.length + 2) / 3 * 4);
+        for(int i = 0; i < data.length; i+= 3) {
+            int n = (data[i] & 0xFF) << 16;
+            if(i + 1 < data.length) n|= (data[i + 1] & 0xFF) << 8;
+            if(i + 2 < data.length) n|= (data[i + 2] & 0xFF);
+            sb.append(BASE64[(n >> 18) & 0x3F]);
+            sb.append(BASE64[(n >> 12) & 0x3F]);
+            sb.append(i + 1 < data.length ? BASE64[(n >> 6) & 0x3F] : '=');
+            sb.append(i + 2 < data.length ? BASE64[n & 0x3F] : '=');
+        }
+        return sb.toString();
+    }
+}
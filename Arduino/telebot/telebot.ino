@@ -62,11 +62,20 @@ const int motorMax = 255;
 
 const int powerMin = 100;
 
+// ---------- Protocol -----------
+const int protocolVersion = 2;  // 1: binary frames, 2: commits acknowledged
+const byte frameStart = 0xA5;   // Binary frames start with this byte, never sent in text mode
+
 // -------------------------------
 
 unsigned long oldmicros = 0L;
 String inputString = "";
 
+byte frame[8];        // Binary frame being received
+int frameLength = 0;  // Bytes received so far, 0 if not in a frame
+int linkVersion = 0;  // Version negotiated with the phone
+int batteryPercent = 100;
+
 long steps = 0L;
 long rotx0 = 0L;
 long rotxl = 0L;
@@ -106,6 +115,101 @@ void motorLeft(int power)
   else analogWrite(motorLeftEnablePin, 0);
 }
 
+// CRC-8 with polynomial 0x07
+byte crc8(const byte *data, int len)
+{
+  byte crc = 0;
+  for(int i = 0; i < len; ++i)
+  {
+    crc ^= data[i];
+    for(int j = 0; j < 8; ++j)
+      crc = (crc & 0x80) ? (crc << 1) ^ 0x07 : (crc << 1);
+  }
+  return crc;
+}
+
+// Get the whole length of a binary frame from the phone, or 0 if the opcode is unknown
+int binaryFrameLength(byte opcode)
+{
+  switch(opcode)
+  {
+  case 'L': return 5; // int8 left
+  case 'R': return 5; // int8 right
+  case 'C': return 4; // commit
+  case 'B': return 4; // battery
+  case 'M': return 6; // int8 left, int8 right, commit
+  default:  return 0;
+  }
+}
+
+// Send a binary frame with an optional one-byte payload
+void sendFrame(byte opcode, int payloadLength, byte payload, byte seq)
+{
+  byte out[5];
+  int n = 0;
+  out[n++] = frameStart;
+  out[n++] = opcode;
+  if(payloadLength) out[n++] = payload;
+  out[n++] = seq;
+  out[n] = crc8(out + 1, n - 1);
+  ++n;
+  bluetooth.write(out, n);
+}
+
+// Set pending control, value is in percent
+void setLeft(int value)
+{
+  value = constrain(value, -100, 100)*10;
+  tempLeftPower = int(long(value)*controlFactor/1000L);
+}
+
+void setRight(int value)
+{
+  value = constrain(value, -100, 100)*10;
+  tempRightPower = int(long(value)*controlFactor/1000L);
+}
+
+void commit(void)
+{
+  commandLeftPower  = tempLeftPower;
+  commandRightPower = tempRightPower;
+}
+
+// Process a complete binary frame
+void processFrame(void)
+{
+  byte opcode = frame[1];
+  byte seq = frame[frameLength-2];
+  if(crc8(frame + 1, frameLength - 2) != frame[frameLength-1])
+  {
+    sendFrame('E', 0, 0, seq);
+    return;
+  }
+
+  switch(opcode)
+  {
+  case 'L': // left
+    setLeft(int(char(frame[2])));
+    break;
+  case 'R': // right
+    setRight(int(char(frame[2])));
+    break;
+  case 'C': // commit
+    commit();
+    if(linkVersion >= 2) sendFrame('A', 0, 0, seq);
+    break;
+  case 'M': // left, right and commit
+    setLeft(int(char(frame[2])));
+    setRight(int(char(frame[3])));
+    commit();
+    if(linkVersion >= 2) sendFrame('A', 0, 0, seq);
+    break;
+  case 'B': // battery
+    sendFrame('B', 1, byte(batteryPercent), seq);
+    break;
+  }
+}
+
 // Init I2C connection
 void initWire(void)
 {
@@ -149,12 +253,29 @@ void loop(void)
   oldmicros = micros();
   
   int batteryVoltage = int(long(analogRead(batteryProbePin))*batteryProbeFactor/1000L);  // mV
-  int batteryPercent = constrain(map(batteryVoltage, 3200, 4200, 0, 100), 0, 100);
+  batteryPercent = constrain(map(batteryVoltage, 3200, 4200, 0, 100), 0, 100);
 
   // Read commands on bluetooth serial
   while(bluetooth.available())
   {
     char chr = (char)bluetooth.read();
+
+    // Binary frames, only recognized at the beginning of a line
+    if(frameLength > 0 || (byte(chr) == frameStart && inputString.length() == 0))
+    {
+      frame[frameLength++] = byte(chr);
+      if(frameLength == 2 && binaryFrameLength(frame[1]) == 0)
+      {
+        frameLength = 0;  // unknown opcode, resynchronize
+      }
+      else if(frameLength >= 2 && frameLength == binaryFrameLength(frame[1]))
+      {
+        processFrame();
+        frameLength = 0;
+      }
+      continue;
+    }
+
     if(chr != '\n') 
     {
       if(chr != '\r')
@@ -168,26 +289,28 @@ void loop(void)
         while(pos < inputString.length() && inputString[pos] == ' ') ++pos;
         param = inputString.substring(pos);
 
-        int value = 0;
         switch(cmd)
         {
         case 'L': // left
-          value = constrain(param.toInt(), -100, 100)*10;
-          tempLeftPower = int(long(value)*controlFactor/1000L);
+          setLeft(param.toInt());
           break;
         case 'R': // right
-          value = constrain(param.toInt(), -100, 100)*10;
-          tempRightPower = int(long(value)*controlFactor/1000L);
+          setRight(param.toInt());
           break;
         case 'C': // commit
-          commandLeftPower  = tempLeftPower;
-          commandRightPower = tempRightPower;
+          commit();
           break;
         case 'B': // battery
           bluetooth.print("B ");
           bluetooth.print(batteryPercent);
           bluetooth.println();
           break;
+        case 'P': // protocol negotiation
+          linkVersion = min(int(param.toInt()), protocolVersion);
+          bluetooth.print("P ");
+          bluetooth.print(linkVersion);
+          bluetooth.println();
+          break;
         default:
           bluetooth.println("E");
           break; 
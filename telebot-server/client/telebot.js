@@ -39,6 +39,7 @@ const recorderOptions = {
 
 // Local control API
 const localControlUrl = 'http://127.0.0.1:11698/control';
+const localControlWsUrl = 'ws://127.0.0.1:11698/control/ws';
 
 // Global variables
 let active = true;
@@ -52,6 +53,7 @@ let peer;
 let localStream;
 let remoteStream;
 let recorder;
+let localControlSocket;
 
 let selfView;
 let remoteView;
@@ -822,8 +824,29 @@ function displayMessage(msg) {
 	element.innerHTML = element.innerHTML.replace(/\n\r?/g, '<br>');
 }
 
+// Open control stream to local API
+function openLocalControlSocket() {
+	if(localControlSocket || !window.WebSocket) return;
+	localControlSocket = new WebSocket(localControlWsUrl);
+	localControlSocket.binaryType = 'arraybuffer';
+	localControlSocket.onclose = () => {
+		localControlSocket = null;
+	};
+	localControlSocket.onerror = (err) => {
+		console.error(err);
+	};
+}
+
 // Send control to local API
 function localControl(left, right) {
+	// Stream compact binary frames when the socket is open
+	if(localControlSocket && localControlSocket.readyState == WebSocket.OPEN) {
+		const clamp = (value) => Math.max(-100, Math.min(100, value));
+		localControlSocket.send(new Int8Array([clamp(left), clamp(right)]));
+		return;
+	}
+	openLocalControlSocket();
+
 	const body = JSON.stringify({
 		left: left,
 		right: right